@@ -38,23 +38,7 @@ public class System
      */
     public static void arraycopy(Object src, int srcPos, Object dest, int destPos,
             int length) {
-        // sending getClass() to both arguments will check for null
-        Class<?> type1 = src.getClass();
-        Class<?> type2 = dest.getClass();
-        if (!type1.isArray() || !type2.isArray()) {
-            throw new ArrayStoreException();
-        }
-        Class<?> componentType1 = type1.getComponentType();
-        Class<?> componentType2 = type2.getComponentType();
-        if (!componentType1.isPrimitive()) {
-            if (componentType2.isPrimitive()) {
-                throw new ArrayStoreException();
-            }
-        } else {
-            if (componentType2 != componentType1) {
-                throw new ArrayStoreException();
-            }
-		}
+        // The native implementation checks the arguments.
 		arraycopyImpl(src, srcPos, dest, destPos, length);
     }
 
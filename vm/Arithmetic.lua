@@ -0,0 +1,214 @@
+-- Luje
+-- © 2013 David Given
+-- This file is redistributable under the terms of the
+-- New BSD License. Please see the COPYING file in the
+-- project root for the full text.
+
+-- Java integer arithmetic which can't be expressed directly with Lua
+-- operators. Ints are Lua numbers in the int32 range; longs are always
+-- int64_t cdata, so that LuaJIT does the 64-bit arithmetic (with
+-- wraparound) itself and can keep the values unboxed in traces.
+
+local ffi = require("ffi")
+local bit = require("bit")
+local math_floor = math.floor
+local math_ceil = math.ceil
+local math_fmod = math.fmod
+local string_format = string.format
+local bit_band = bit.band
+local bit_bor = bit.bor
+local bit_bxor = bit.bxor
+local bit_lshift = bit.lshift
+local bit_rshift = bit.rshift
+local bit_arshift = bit.arshift
+local cast = ffi.cast
+
+local INT64_MIN = -0x7fffffffffffffffLL - 1
+local INT64_MAX = 0x7fffffffffffffffLL
+
+-- int division and remainder truncate towards zero (Lua's % floors). The
+-- caller has already checked for a zero divisor.
+
+local function IDiv(a, b)
+	local q = a / b
+	if (q >= 0) then
+		q = math_floor(q)
+	else
+		q = math_ceil(q)
+	end
+	if (q == 2147483648) then
+		return -2147483648 -- MIN_VALUE / -1 overflows
+	end
+	return q
+end
+
+local function IRem(a, b)
+	local r = math_fmod(a, b)
+	if (r == 0) then
+		return 0 -- and not -0
+	end
+	return r
+end
+
+-- Floating point to integer conversions saturate, and NaN becomes zero;
+-- a plain C cast would be undefined for these.
+
+local function D2I(d)
+	if (d ~= d) then
+		return 0
+	elseif (d >= 2147483647) then
+		return 2147483647
+	elseif (d <= -2147483648) then
+		return -2147483648
+	elseif (d >= 0) then
+		return math_floor(d)
+	else
+		return math_ceil(d)
+	end
+end
+
+local function D2L(d)
+	if (d ~= d) then
+		return 0LL
+	elseif (d >= 9223372036854775807) then
+		return INT64_MAX
+	elseif (d <= -9223372036854775808) then
+		return INT64_MIN
+	else
+		return cast("int64_t", d)
+	end
+end
+
+-- LuaJIT 2.1 bit operations work on int64_t cdata directly, masking shift
+-- counts to six bits just as Java does. LuaJIT 2.0 only has 32-bit bit
+-- operations, so there the long versions are synthesised from arithmetic
+-- and 32-bit halves.
+
+local bit64 = false
+do
+	local ok, r = pcall(bit_lshift, 1LL, 40)
+	bit64 = ok and (r == 0x10000000000LL)
+end
+
+local LShl, LShr, LUShr, LAnd, LOr, LXor
+if bit64 then
+	LShl = bit_lshift
+	LShr = bit_arshift
+	LUShr = bit_rshift
+	LAnd = bit_band
+	LOr = bit_bor
+	LXor = bit_bxor
+else
+	local powers = {}
+	local upowers = {}
+	do
+		local p = 1ULL
+		for i = 0, 63 do
+			upowers[i] = p
+			powers[i] = cast("int64_t", p)
+			p = p * 2ULL
+		end
+	end
+
+	-- Splits a long into its signed high and unsigned low words. The cdata
+	-- % operator truncates, so it can't be used to take the low word of a
+	-- negative long; the casts wrap instead.
+
+	local function split(l)
+		local lo = cast("uint32_t", l)
+		local hi = cast("int32_t", (l - lo) / 0x100000000LL)
+		return tonumber(hi), tonumber(lo)
+	end
+
+	local function join(hi, lo)
+		if (lo < 0) then
+			lo = lo + 0x100000000
+		end
+		return cast("int64_t", hi) * 0x100000000LL + lo
+	end
+
+	LShl = function(l, n)
+		return l * powers[bit_band(n, 63)]
+	end
+
+	LShr = function(l, n)
+		n = bit_band(n, 63)
+		if (n == 63) then
+			return (l < 0) and -1LL or 0LL
+		elseif (l >= 0) then
+			return l / powers[n]
+		else
+			-- Round towards negative infinity.
+			return -((-l - 1) / powers[n]) - 1
+		end
+	end
+
+	LUShr = function(l, n)
+		local u = cast("uint64_t", l)
+		return cast("int64_t", u / upowers[bit_band(n, 63)])
+	end
+
+	LAnd = function(a, b)
+		local ahi, alo = split(a)
+		local bhi, blo = split(b)
+		return join(bit_band(ahi, bhi), bit_band(alo, blo))
+	end
+
+	LOr = function(a, b)
+		local ahi, alo = split(a)
+		local bhi, blo = split(b)
+		return join(bit_bor(ahi, bhi), bit_bor(alo, blo))
+	end
+
+	LXor = function(a, b)
+		local ahi, alo = split(a)
+		local bhi, blo = split(b)
+		return join(bit_bxor(ahi, bhi), bit_bxor(alo, blo))
+	end
+end
+
+-- Long remainder truncates towards zero, as the cdata % operator does, but
+-- it's derived from the division instead so that MIN_VALUE % -1 can't trap.
+-- The caller has already checked for a zero divisor; MIN_VALUE % -1 is
+-- correctly 0 because LuaJIT defines MIN_VALUE / -1 as MIN_VALUE.
+
+local function LRem(a, b)
+	return a - (a / b) * b
+end
+
+-- Converts a constant into a Lua source literal which reproduces it
+-- exactly; tostring() only gives 14 significant digits, and doesn't
+-- produce valid source for infinities or NaN.
+
+local function Literal(c)
+	if (type(c) ~= "number") then
+		return tostring(c) -- int64_t cdata stringify as 123LL
+	elseif (c ~= c) then
+		return "(0/0)"
+	elseif (c == 1/0) then
+		return "(1/0)"
+	elseif (c == -1/0) then
+		return "(-1/0)"
+	elseif (c == 0) and (1/c < 0) then
+		return "(-0)"
+	elseif (c == math_floor(c)) and (c >= -2147483648) and (c <= 2147483647) then
+		return string_format("%d", c)
+	else
+		return string_format("%.17g", c)
+	end
+end
+
+return {
+	IDiv = IDiv,
+	IRem = IRem,
+	D2I = D2I,
+	D2L = D2L,
+	LShl = LShl,
+	LShr = LShr,
+	LUShr = LUShr,
+	LAnd = LAnd,
+	LOr = LOr,
+	LXor = LXor,
+	LRem = LRem,
+	Literal = Literal,
+}
@@ -0,0 +1,299 @@
+-- Luje
+-- © 2013 David Given
+-- This file is redistributable under the terms of the
+-- New BSD License. Please see the COPYING file in the
+-- project root for the full text.
+
+-- The classpath: a list of directories and jar (or zip) files which class
+-- files are looked up in, in order. Each archive's central directory is
+-- read once, when it's added, into an index of its entries; entries are
+-- only read, and inflated if need be, when they're asked for. Where
+-- possible archives are memory mapped rather than read into memory.
+
+local ffi = require("ffi")
+local Utils = require("Utils")
+local dbg = Utils.Debug
+local string_find = string.find
+local string_gmatch = string.gmatch
+local ffi_string = ffi.string
+local ffi_cast = ffi.cast
+local ServerDir = ServerDir
+
+ffi.cdef [[
+	int open(const char* pathname, int flags);
+	int close(int fd);
+	long lseek(int fd, long offset, int whence);
+	void* mmap(void* addr, size_t length, int prot, int flags, int fd,
+		long offset);
+
+	typedef struct luje_z_stream {
+		const uint8_t* next_in;
+		unsigned avail_in;
+		unsigned long total_in;
+		uint8_t* next_out;
+		unsigned avail_out;
+		unsigned long total_out;
+		const char* msg;
+		void* state;
+		void* zalloc;
+		void* zfree;
+		void* opaque;
+		int data_type;
+		unsigned long adler;
+		unsigned long reserved;
+	} luje_z_stream;
+
+	const char* zlibVersion(void);
+	int inflateInit2_(luje_z_stream* strm, int windowBits,
+		const char* version, int stream_size);
+	int inflate(luje_z_stream* strm, int flush);
+	int inflateEnd(luje_z_stream* strm);
+]]
+
+local O_RDONLY = 0
+local SEEK_END = 2
+local PROT_READ = 1
+local MAP_PRIVATE = 2
+local MAP_FAILED = ffi_cast("void*", -1)
+
+local Z_FINISH = 4
+local Z_STREAM_END = 1
+
+local entries = {}
+
+-- The bin directory, which ant builds the library into, is always searched
+-- first, like Java's boot classpath.
+
+local boot = nil
+
+-- zlib is only needed for compressed entries, so it's only loaded when the
+-- first one is read.
+
+local zlib = nil
+
+local function loadzlib()
+	if not zlib then
+		for _, name in ipairs({"z", "libz.so.1"}) do
+			local ok, lib = pcall(ffi.load, name)
+			if ok then
+				zlib = lib
+				break
+			end
+		end
+		if not zlib then
+			Utils.UserError("can't read compressed jar entries as zlib isn't available")
+		end
+	end
+	return zlib
+end
+
+-- Maps a file into memory, returning a pointer to it and its size, or nil.
+
+local function mapfile(filename)
+	if (ffi.os ~= "Linux") and (ffi.os ~= "OSX") then
+		return nil
+	end
+
+	local fd = ffi.C.open(filename, O_RDONLY)
+	if (fd < 0) then
+		return nil
+	end
+	local size = tonumber(ffi.C.lseek(fd, 0, SEEK_END))
+	local p = nil
+	if (size > 0) then
+		p = ffi.C.mmap(nil, size, PROT_READ, MAP_PRIVATE, fd, 0)
+	end
+	ffi.C.close(fd)
+
+	if not p or (p == MAP_FAILED) then
+		return nil
+	end
+	return ffi_cast("const uint8_t*", p), size
+end
+
+-- Zip files are little-endian.
+
+local function u2at(data, p)
+	return data[p] + data[p+1]*0x100
+end
+
+local function u4at(data, p)
+	return data[p] + data[p+1]*0x100 + data[p+2]*0x10000 + data[p+3]*0x1000000
+end
+
+-- Inflates a raw deflate stream.
+
+local function inflate(p, csize, usize)
+	local z = loadzlib()
+	local output = ffi.new("uint8_t[?]", usize + 1)
+	local stream = ffi.new("luje_z_stream")
+	stream.next_in = p
+	stream.avail_in = csize
+	stream.next_out = output
+	stream.avail_out = usize + 1
+
+	-- Negative window bits means no zlib header.
+	if (z.inflateInit2_(stream, -15, z.zlibVersion(), ffi.sizeof(stream)) ~= 0) then
+		Utils.FatalError("can't initialise zlib")
+	end
+	local r = z.inflate(stream, Z_FINISH)
+	z.inflateEnd(stream)
+	if (r ~= Z_STREAM_END) or (stream.total_out ~= usize) then
+		return nil
+	end
+	return ffi_string(output, usize)
+end
+
+-- Opens an archive and reads its central directory into an index, mapping
+-- entry names to their compression method, sizes and local header offset.
+
+local function openarchive(filename)
+	local data, size = mapfile(filename)
+	local anchor = nil
+	if not data then
+		local fp = io.open(filename, "rb")
+		if not fp then
+			return nil
+		end
+		anchor = fp:read("*a")
+		fp:close()
+		data = ffi_cast("const uint8_t*", anchor)
+		size = #anchor
+	end
+
+	-- The end of central directory record is at the end of the file, but
+	-- may be followed by a comment of up to 64kB.
+
+	local eocd = nil
+	local p = size - 22
+	while (p >= 0) and (p >= size - 22 - 0xffff) do
+		if (u4at(data, p) == 0x06054b50) then
+			eocd = p
+			break
+		end
+		p = p - 1
+	end
+	if not eocd then
+		Utils.UserError(filename, " is not a jar or zip file")
+	end
+
+	local count = u2at(data, eocd+10)
+	local index = {}
+	p = u4at(data, eocd+16)
+	for i = 1, count do
+		if (p + 46 > size) or (u4at(data, p) ~= 0x02014b50) then
+			Utils.UserError(filename, " has a corrupt central directory")
+		end
+		local namelength = u2at(data, p+28)
+		local name = ffi_string(data + p + 46, namelength)
+		index[name] = {
+			Method = u2at(data, p+10),
+			CompressedSize = u4at(data, p+20),
+			Size = u4at(data, p+24),
+			Offset = u4at(data, p+42)
+		}
+		p = p + 46 + namelength + u2at(data, p+30) + u2at(data, p+32)
+	end
+
+	return {
+		Find = function(self, name)
+			local e = index[name]
+			if not e then
+				return nil
+			end
+
+			-- The local header's extra field needn't match the central
+			-- directory's, so its length has to be read from here.
+
+			local h = e.Offset
+			if (u4at(data, h) ~= 0x04034b50) then
+				Utils.UserError(filename, " has a corrupt entry for ", name)
+			end
+			local start = h + 30 + u2at(data, h+26) + u2at(data, h+28)
+			if (start + e.CompressedSize > size) then
+				Utils.UserError(filename, " has a truncated entry for ", name)
+			end
+
+			local r
+			if (e.Method == 0) then -- stored
+				r = ffi_string(data + start, e.Size)
+			elseif (e.Method == 8) then -- deflated
+				r = inflate(data + start, e.CompressedSize, e.Size)
+				if not r then
+					Utils.UserError(filename, " has a corrupt entry for ", name)
+				end
+			else
+				Utils.UserError(filename, " uses unsupported compression method ",
+					e.Method, " for ", name)
+			end
+			return r
+		end,
+
+		-- Keeps the file's contents alive if it wasn't mapped.
+		Anchor = anchor
+	}
+end
+
+local function opendirectory(directory)
+	if not string_find(directory, "/$") then
+		directory = directory.."/"
+	end
+
+	return {
+		Find = function(self, name)
+			local fp = io.open(directory..name, "rb")
+			if not fp then
+				return nil
+			end
+			local data = fp:read("*a")
+			fp:close()
+			return data
+		end
+	}
+end
+
+-- Sets the classpath from a colon-separated list of directories and
+-- archives.
+
+local function Set(classpath)
+	entries = {}
+	for path in string_gmatch(classpath, "[^:]+") do
+		local e
+		if string_find(path, "%.[jJ][aA][rR]$") or
+				string_find(path, "%.[zZ][iI][pP]$") then
+			e = openarchive(path)
+			if not e then
+				Utils.UserError("can't open ", path)
+			end
+		else
+			e = opendirectory(path)
+		end
+		entries[#entries+1] = e
+	end
+end
+
+-- Returns the contents of a file on the classpath, or nil if it's not
+-- there.
+
+local function Find(name)
+	if not boot then
+		boot = opendirectory(ServerDir.."../bin/")
+	end
+
+	local data = boot:Find(name)
+	if data then
+		return data
+	end
+	for _, e in ipairs(entries) do
+		local data = e:Find(name)
+		if data then
+			return data
+		end
+	end
+	return nil
+end
+
+return {
+	Set = Set,
+	Find = Find
+}
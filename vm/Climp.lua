@@ -11,82 +11,737 @@ local Options = require("Options")
 local string_byte = string.byte
 local string_find = string.find
 local string_gsub = string.gsub
+local string_gmatch = string.gmatch
+local string_format = string.format
 local table_concat = table.concat
+local table_sort = table.sort
+local math_floor = math.floor
 local Cast = require("Cast")
+local Arithmetic = require("Arithmetic")
+local CodeCache = require("CodeCache")
+local Fields = require("Fields")
+local Interpreter = require("Interpreter")
 local ffi = require("ffi")
-local ffi_new = ffi.new
 local BtoSB = Cast.BtoSB
 local BBtoW = Cast.BBtoW
 local WtoSW = Cast.WtoSW
 local WWtoI = Cast.WWtoI
 local ItoSI = Cast.ItoSI
+local field_name = Fields.FieldName
+local instance_field_slot = Fields.InstanceFieldSlot
+local static_field_slot = Fields.StaticFieldSlot
+
+-- Table describing the initial values of fields (as Lua source); anything
+-- not in this table is an object reference, which starts off as nil.
+
+local fielddefaults = {
+	["Z"] = "0",
+	["B"] = "0",
+	["C"] = "0",
+	["S"] = "0",
+	["I"] = "0",
+	["J"] = "0LL",
+	["F"] = "0",
+	["D"] = "0"
+}
+
+-- Table describing the conversions needed when storing into fields whose
+-- values wouldn't otherwise have the right representation. (Longs are
+-- always int64_t cdata already, so need no conversion.)
 
--- Table describing boxed values.
-
-local boxinfo = {
-	["Z"] = "int32_t",
-	["B"] = "int8_t",
-	["C"] = "uint16_t",
-	["S"] = "int16_t ",
-	["I"] = "int32_t ",
-	["J"] = "int64_t ",
-	["F"] = "float",
-	["D"] = "double"
+local fieldstores = {
+	["F"] = "tonumber(cast('float', %s))"
 }
 
--- Resolves a field reference in a climp.
+-- Converts a value being stored into a field, if necessary.
+
+local function field_store(f, v)
+	local conv = fieldstores[f.Descriptor]
+	if conv then
+		return string_format(conv, v)
+	end
+	return v
+end
+
+-- The number of statically bound call targets in a method which get their
+-- own upvalues; LuaJIT only allows 60 upvalues per function, and the
+-- constants and arithmetic helpers need some too.
+
+local MAX_BOUND_TARGETS = 16
+
+-- Likewise, the number of constants which get their own upvalues; any more
+-- are looked up in the constants table.
+
+local MAX_CONSTANT_UPVALUES = 16
+
+-- Methods with more bytecode than this are split into several chained Lua
+-- functions of about this size, as otherwise the generated code overflows
+-- LuaJIT's limits on function size and jump distances.
+
+local MAX_CHUNK_SIZE = 2000
+
+-- Methods can only be split where the operand stack is this deep or less,
+-- as the values on it are passed to the next function as parameters. This
+-- needs to be at least one, as a static initialiser for a large array
+-- ("static final int[] a = {...}") keeps the array on the stack from its
+-- newarray right through to its putstatic.
+
+local MAX_SPLIT_STACK = 8
 
-local function search_for_field_in_climp_class_hierarchy(climp, name)
-	if climp.Analysis.Fields[name] then
-		return climp
+-- Values left on the stack at a split have to be flushed and passed
+-- across, so a method is preferably split where the stack holds at most
+-- one value (in the initialiser above, between element stores). Only once
+-- a function has grown this much past MAX_CHUNK_SIZE without finding such
+-- a point is it split with a deeper stack.
+
+local MAX_SPLIT_SLACK = 500
+
+-- Limits on inlining: how deeply inlined methods may themselves be inlined
+-- into, and how many locals and stack slots a method may use once its
+-- callees have been inlined (LuaJIT allows 200 locals per function, and the
+-- generated code needs a few temporaries).
+
+local MAX_INLINE_DEPTH = 4
+local MAX_FRAME_SLOTS = 180
+
+-- The sizes of all fixed-size opcodes.
+
+local opcode_sizes = {}
+do
+	local function sizes(first, last, size)
+		for opcode = first, last do
+			opcode_sizes[opcode] = size
+		end
+	end
+
+	sizes(0x00, 0x0f, 1) -- nop, constants
+	sizes(0x10, 0x10, 2) -- bipush
+	sizes(0x11, 0x11, 3) -- sipush
+	sizes(0x12, 0x12, 2) -- ldc
+	sizes(0x13, 0x14, 3) -- ldc_w, ldc2_w
+	sizes(0x15, 0x19, 2) -- loads
+	sizes(0x1a, 0x35, 1) -- loads, array loads
+	sizes(0x36, 0x3a, 2) -- stores
+	sizes(0x3b, 0x98, 1) -- stores, array stores, stack, arithmetic, comparisons
+	sizes(0x84, 0x84, 3) -- iinc
+	sizes(0x99, 0xa8, 3) -- branches, goto, jsr
+	sizes(0xa9, 0xa9, 2) -- ret
+	sizes(0xac, 0xb1, 1) -- returns
+	sizes(0xb2, 0xb8, 3) -- field accesses, invokevirtual/special/static
+	sizes(0xb9, 0xba, 5) -- invokeinterface, invokedynamic
+	sizes(0xbb, 0xbb, 3) -- new
+	sizes(0xbc, 0xbc, 2) -- newarray
+	sizes(0xbd, 0xbd, 3) -- anewarray
+	sizes(0xbe, 0xbf, 1) -- arraylength, athrow
+	sizes(0xc0, 0xc1, 3) -- checkcast, instanceof
+	sizes(0xc2, 0xc3, 1) -- monitorenter, monitorexit
+	sizes(0xc5, 0xc5, 4) -- multianewarray
+	sizes(0xc6, 0xc7, 3) -- ifnull, ifnonnull
+	sizes(0xc8, 0xc9, 5) -- goto_w, jsr_w
+end
+
+-- The sizes of the opcodes which may appear in an inlined method. Only
+-- straight-line code is inlined, so this excludes anything which branches,
+-- throws or is 'wide'.
+
+local inlineable_opcode_sizes = {}
+do
+	for opcode, size in pairs(opcode_sizes) do
+		inlineable_opcode_sizes[opcode] = size
+	end
+	for opcode = 0x99, 0xa9 do
+		inlineable_opcode_sizes[opcode] = nil
 	end
-	local superclimp = climp:SuperClimp()
-	if superclimp then
-		return search_for_field_in_climp_class_hierarchy(superclimp, name)
+	for _, opcode in ipairs({0xbf, 0xc6, 0xc7, 0xc8, 0xc9}) do
+		inlineable_opcode_sizes[opcode] = nil
+	end
+end
+
+-- Returns the local accessed by a load or store instruction (given the
+-- opcode of the long form, and the first of the short forms), or nil if
+-- the instruction isn't one.
+
+local function local_operand(bytecode, pc, long, short)
+	local opcode = string_byte(bytecode, pc+1)
+	if (opcode == long) then
+		return string_byte(bytecode, pc+2)
+	elseif (opcode >= short) and (opcode <= short+3) then
+		return opcode - short
 	end
 	return nil
 end
 
-local function resolve_field_reference(climp, field)
-	if not field.ResolvedClass then
-		field.ResolvedClass = search_for_field_in_climp_class_hierarchy(climp, field.Name)
+-- Scans a method's bytecode. This returns a table containing:
+--
+--   Instructions: the pcs of each instruction, in order;
+--   Positions: maps pcs to their position in Instructions;
+--   Edges: all branches, as {from, to} pairs;
+--   Leaders: the set of pcs which can be reached other than by falling
+--     through from the previous instruction (branch targets and exception
+--     handlers);
+--   StoreCounts: the number of instructions which write each local;
+--   UseCounts: the number of instructions which read or write each local.
+
+local function scan_bytecode(bytecode, exceptiontable)
+	local instructions = {}
+	local positions = {}
+	local edges = {}
+	local leaders = {}
+	local stores = {}
+	local uses = {}
+
+	local function u1(pc)
+		return string_byte(bytecode, pc+1)
+	end
+
+	local function u2(pc)
+		return BBtoW(u1(pc), u1(pc+1))
+	end
+
+	local function s4(pc)
+		return ItoSI(WWtoI(u2(pc), u2(pc+2)))
+	end
+
+	local function branch(from, to)
+		edges[#edges+1] = {from, to}
+		leaders[to] = true
+	end
+
+	local function use(n)
+		uses[n] = (uses[n] or 0) + 1
+	end
+
+	local function store(n)
+		stores[n] = (stores[n] or 0) + 1
+		use(n)
+	end
+
+	local pc = 0
+	while (pc < #bytecode) do
+		local opcode = u1(pc)
+		local size = opcode_sizes[opcode]
+		instructions[#instructions+1] = pc
+		positions[pc] = #instructions
+
+		if ((opcode >= 0x99) and (opcode <= 0xa8)) or (opcode == 0xc6) or (opcode == 0xc7) then
+			branch(pc, pc + WtoSW(u2(pc+1)))
+		elseif (opcode == 0xc8) or (opcode == 0xc9) then
+			branch(pc, pc + s4(pc+1))
+		elseif (opcode == 0xaa) or (opcode == 0xab) then
+			-- tableswitch, lookupswitch: operands are 4-aligned.
+			local p = pc + 4 - (pc % 4)
+			branch(pc, pc + s4(p))
+			if (opcode == 0xaa) then
+				local low = s4(p+4)
+				local high = s4(p+8)
+				for i = 0, high-low do
+					branch(pc, pc + s4(p+12+i*4))
+				end
+				size = p + 12 + (high-low+1)*4 - pc
+			else
+				local npairs = s4(p+4)
+				for i = 0, npairs-1 do
+					branch(pc, pc + s4(p+12+i*8))
+				end
+				size = p + 8 + npairs*8 - pc
+			end
+		elseif (opcode == 0xc4) then
+			-- wide
+			local wopcode = u1(pc+1)
+			if ((wopcode >= 0x36) and (wopcode <= 0x3a)) or (wopcode == 0x84) then
+				store(u2(pc+2))
+			elseif (wopcode >= 0x15) and (wopcode <= 0x19) then
+				use(u2(pc+2))
+			end
+			if (wopcode == 0x84) then
+				size = 6
+			else
+				size = 4
+			end
+		elseif (opcode >= 0x15) and (opcode <= 0x19) then
+			use(u1(pc+1))
+		elseif (opcode >= 0x1a) and (opcode <= 0x2d) then
+			use((opcode - 0x1a) % 4)
+		elseif (opcode >= 0x36) and (opcode <= 0x3a) then
+			store(u1(pc+1))
+		elseif (opcode >= 0x3b) and (opcode <= 0x4e) then
+			store((opcode - 0x3b) % 4)
+		elseif (opcode == 0x84) then
+			store(u1(pc+1))
+		end
+
+		Utils.Assert(size, "unknown opcode 0x", string_format("%02x", opcode))
+		pc = pc + size
 	end
-	return field.ResolvedClass
+
+	for _, t in ipairs(exceptiontable) do
+		leaders[t.handler_pc] = true
+	end
+
+	return {
+		Instructions = instructions,
+		Positions = positions,
+		Edges = edges,
+		Leaders = leaders,
+		StoreCounts = stores,
+		UseCounts = uses
+	}
 end
 
--- Massages a field into a C name.
+-- Returns the set of pcs where a method can be split into separate
+-- functions: those which no branch crosses.
+
+local function find_split_points(flow)
+	local instructions = flow.Instructions
+	local positions = flow.Positions
+	local crossings = {}
+	for _, e in ipairs(flow.Edges) do
+		local from, to = positions[e[1]], positions[e[2]]
+		if from and to then
+			if (from > to) then
+				from, to = to, from
+			end
+			crossings[from+1] = (crossings[from+1] or 0) + 1
+			crossings[to+1] = (crossings[to+1] or 0) - 1
+		end
+	end
 
-local function field_name(climp, field)
-	local s = (resolve_field_reference(climp, field).ThisClass()).."/"..field.Name..field.Descriptor
-	s = string_gsub(s, "_", "_U_")
-	s = string_gsub(s, "/", "_S_")
-	s = string_gsub(s, "%$", "_D_")
-	return s
+	local points = {}
+	local n = 0
+	for k, pc in ipairs(instructions) do
+		n = n + (crossings[k] or 0)
+		if (n == 0) then
+			points[pc] = true
+		end
+	end
+	return points
 end
 
--- Returns an lvalue representing an object (or class) field.
+-- Returns the value pushed by an instruction which pushes a non-negative
+-- integer constant, or nil.
+
+local function nonnegative_constant(bytecode, pc)
+	local opcode = string_byte(bytecode, pc+1)
+	local value
+	if (opcode >= 0x03) and (opcode <= 0x08) then -- iconst_0..5
+		value = opcode - 0x03
+	elseif (opcode == 0x10) then -- bipush
+		value = BtoSB(string_byte(bytecode, pc+2))
+	elseif (opcode == 0x11) then -- sipush
+		value = WtoSW(BBtoW(string_byte(bytecode, pc+2), string_byte(bytecode, pc+3)))
+	end
+	if value and (value >= 0) then
+		return value
+	end
+	return nil
+end
 
-local function field_lvalue(c, f)
-	local bi = boxinfo[f.Descriptor]
-	if bi then
-		-- This is a boxed value.
-		return "Fields['"..field_name(c, f).."']"
-	else
-		-- Non-boxed value (object reference).
-		return "OFields['"..field_name(c, f).."']"
+-- Finds counted loops of the shape javac produces for:
+--
+--   for (int i = k; i < a.length; i++) (where k >= 0)
+--
+-- ...comparing either against a.length directly, or against a local
+-- holding it (if a is never reassigned), either way round. Modern javac
+-- tests the condition at the top of the loop and exits when it fails:
+--
+--   head: iload i; aload a; arraylength; if_icmpge exit
+--         ...body...; iinc i 1; goto head
+--
+-- ...but older compilers test it at the bottom instead, jumping to it on
+-- entry and branching back to the body while it holds. Either way, between
+-- the condition and the increment, i is always a valid index into a, so
+-- array accesses there don't need bounds checks. Returns a list of
+-- {first, last, i, a}, giving the range of pcs where this holds and the
+-- locals involved.
+
+local function find_counted_loops(bytecode, exceptiontable, flow)
+	local loops = {}
+	local instructions = flow.Instructions
+	local positions = flow.Positions
+	local storecounts = flow.StoreCounts
+
+	local function opcodeat(k)
+		local pc = instructions[k]
+		return pc and string_byte(bytecode, pc+1)
+	end
+
+	local function iload(k)
+		return instructions[k] and local_operand(bytecode, instructions[k], 0x15, 0x1a)
+	end
+
+	local function aload(k)
+		return instructions[k] and local_operand(bytecode, instructions[k], 0x19, 0x2a)
+	end
+
+	local function istore(k)
+		return instructions[k] and local_operand(bytecode, instructions[k], 0x36, 0x3b)
+	end
+
+	local function astore(k)
+		return instructions[k] and local_operand(bytecode, instructions[k], 0x3a, 0x4b)
+	end
+
+	-- Returns the target of the branch at position k.
+
+	local function target(k)
+		local pc = instructions[k]
+		return pc + WtoSW(BBtoW(string_byte(bytecode, pc+2), string_byte(bytecode, pc+3)))
 	end
+
+	-- Returns the array whose length is stored in local n, if n is only
+	-- ever set once, from the length of an array which is never changed.
+
+	local function lengthof(n)
+		if (storecounts[n] ~= 1) then
+			return nil
+		end
+		for k = 3, #instructions do
+			if (istore(k) == n) then
+				local a = aload(k-2)
+				if (opcodeat(k-1) == 0xbe) and a and not storecounts[a] then
+					return a, instructions[k]
+				end
+				return nil
+			end
+		end
+		return nil
+	end
+
+	-- Matches the length pushed by the instructions ending at position k:
+	-- aload a; arraylength, or iload n. Returns a, n, the store to n, and
+	-- the position of the first instruction.
+
+	local function matchlength(k)
+		if (opcodeat(k) == 0xbe) then
+			return aload(k-1), nil, nil, k-1
+		end
+		local n = iload(k)
+		if n then
+			local a, nstore = lengthof(n)
+			return a, n, nstore, k
+		end
+		return nil
+	end
+
+	-- Matches the operands of the comparison at position k: iload i and
+	-- then the length, or the other way round if swapped. Returns i, a, n,
+	-- the store to n, and the position of the first instruction of the
+	-- condition.
+
+	local function matchcondition(k, swapped)
+		local i, a, n, nstore, cond
+		if swapped then
+			i = iload(k-1)
+			a, n, nstore, cond = matchlength(k-2)
+		else
+			a, n, nstore, cond = matchlength(k-1)
+			if cond then
+				cond = cond - 1
+				i = iload(cond)
+			end
+		end
+		if i and a then
+			return i, a, n, nstore, cond
+		end
+		return nil
+	end
+
+	for _, edge in ipairs(flow.Edges) do
+		local backedge, head = edge[1], edge[2]
+		local k = positions[backedge]
+		local h = positions[head]
+		local opcode = opcodeat(k)
+		local i, a, n, nstore, cond, first, last, entry, ok
+
+		if (head >= backedge) or (h < 3) then
+			-- not a loop, or no room for the entry
+		elseif (opcode == 0xa1) or (opcode == 0xa3) then -- if_icmplt, if_icmpgt
+			-- Bottom tested: the entry is 'push a non-negative constant;
+			-- istore i; goto the condition', none of which can be jumped to.
+
+			i, a, n, nstore, cond = matchcondition(k, opcode == 0xa3)
+			entry = instructions[h-1]
+			ok = i and (cond > h) and (h > 3) and
+				(opcodeat(h-1) == 0xa7) and (positions[target(h-1)] == cond) and
+				(istore(h-2) == i) and
+				nonnegative_constant(bytecode, instructions[h-3]) and
+				not flow.Leaders[instructions[h-1]] and
+				not flow.Leaders[instructions[h-2]]
+			first = head
+			last = instructions[cond]
+		elseif (opcode == 0xa7) then -- goto
+			-- Top tested: the condition is at the head, and leaves the loop
+			-- with if_icmpge (or if_icmple, if swapped) when it fails. The
+			-- loop is entered by falling into it from 'push a non-negative
+			-- constant; istore i'.
+
+			for b = h+2, h+3 do
+				local bopcode = opcodeat(b)
+				if (bopcode == 0xa2) or (bopcode == 0xa4) then -- if_icmpge, if_icmple
+					i, a, n, nstore, cond = matchcondition(b, bopcode == 0xa4)
+					ok = i and (cond == h) and (target(b) > backedge)
+					first = instructions[b+1]
+					break
+				end
+			end
+			ok = ok and (istore(h-1) == i) and
+				nonnegative_constant(bytecode, instructions[h-2]) and
+				not flow.Leaders[instructions[h-1]]
+			last = backedge
+		end
+		ok = ok and (not nstore or (nstore < head) or (nstore > backedge))
+
+		-- Within the loop, i may only be changed by a single 'iinc i 1',
+		-- after the condition, and a must not be changed at all.
+
+		local inc
+		if ok then
+			for j = h, k do
+				local pc = instructions[j]
+				local opcode = opcodeat(j)
+				if (opcode == 0xc4) then
+					ok = false
+				elseif (opcode == 0x84) and (string_byte(bytecode, pc+2) == i) then
+					if inc or (BtoSB(string_byte(bytecode, pc+3)) ~= 1) then
+						ok = false
+					end
+					inc = pc
+				elseif (istore(j) == i) or (astore(j) == a) or
+						(n and (istore(j) == n)) then
+					ok = false
+				end
+			end
+			ok = ok and inc and (inc >= first) and (inc < last)
+		end
+
+		-- The loop may only be entered through the entry, and the increment
+		-- mustn't be bypassed by a branch back into the body.
+
+		if ok then
+			for _, e in ipairs(flow.Edges) do
+				local from, to = e[1], e[2]
+				if (to >= head) and (to <= backedge) then
+					if (from < head) or (from > backedge) then
+						ok = ok and (from == entry) and (to == last)
+					elseif (to == head) then
+						ok = ok and (from == backedge)
+					elseif (from >= inc) and (to <= inc) then
+						ok = false
+					end
+				end
+			end
+			for _, t in ipairs(exceptiontable) do
+				if (t.handler_pc >= head) and (t.handler_pc <= backedge) then
+					ok = false
+				end
+			end
+		end
+
+		if ok then
+			loops[#loops+1] = {first, inc, i, a}
+		end
+	end
+
+	return loops
+end
+
+-- The number of stack slots popped by the instructions which may appear in
+-- simple expressions between an array access' index being pushed and the
+-- access itself (see compile_method's provenindex()).
+
+local expression_pops = {}
+do
+	for opcode = 0x01, 0x2d do -- constants, loads
+		expression_pops[opcode] = 0
+	end
+	for opcode = 0x2e, 0x35 do -- array loads
+		expression_pops[opcode] = 2
+	end
+	expression_pops[0x59] = 1 -- dup
+	for opcode = 0x60, 0x73 do -- binary arithmetic
+		expression_pops[opcode] = ((opcode % 2) == 0) and 2 or 4
+	end
+	for opcode = 0x74, 0x77 do -- negation
+		expression_pops[opcode] = ((opcode % 2) == 0) and 1 or 2
+	end
+	for opcode = 0x78, 0x7d do -- shifts
+		expression_pops[opcode] = ((opcode % 2) == 0) and 2 or 3
+	end
+	for opcode = 0x7e, 0x83 do -- logic
+		expression_pops[opcode] = ((opcode % 2) == 0) and 2 or 4
+	end
+	for opcode, n in pairs({
+			[0x85] = 1, [0x86] = 1, [0x87] = 1, [0x88] = 2, [0x89] = 2,
+			[0x8a] = 2, [0x8b] = 1, [0x8c] = 1, [0x8d] = 1, [0x8e] = 2,
+			[0x8f] = 2, [0x90] = 2, [0x91] = 1, [0x92] = 1, [0x93] = 1}) do
+		expression_pops[opcode] = n -- conversions
+	end
+	expression_pops[0xb2] = 0 -- getstatic
+	expression_pops[0xb4] = 1 -- getfield
+	expression_pops[0xbe] = 1 -- arraylength
+end
+
+-- Opcodes whose handlers understand pending expressions on the stack (see
+-- compile_method's flush()); before anything else, the stack is
+-- materialised into its variables.
+
+local expression_opcodes = {}
+do
+	for _, r in ipairs({
+			{0x01, 0x2d}, -- constants, loads
+			{0x36, 0x4e}, -- stores
+			{0x57, 0x59}, -- pop, pop2, dup
+			{0x60, 0x6b}, -- arithmetic
+			{0x6e, 0x6f}, -- floating point division
+			{0x72, 0x93}, -- floating point remainder, negation, shifts,
+			              -- logic, iinc, conversions
+			{0x99, 0xa6}, -- conditional branches
+			{0xc6, 0xc7}}) do -- ifnull, ifnonnull
+		for opcode = r[1], r[2] do
+			expression_opcodes[opcode] = true
+		end
+	end
+end
+
+-- Pending expressions longer than this are materialised straight away, to
+-- keep the generated source readable.
+
+local MAX_EXPRESSION_LENGTH = 120
+
+-- The number of stack slots returned by each return opcode.
+
+local return_sizes = {
+	[0xac] = 1, -- ireturn
+	[0xad] = 2, -- lreturn
+	[0xae] = 1, -- freturn
+	[0xaf] = 2, -- dreturn
+	[0xb0] = 1, -- areturn
+	[0xb1] = 0, -- return
+}
+
+-- Returns true if a call to the method (which has been resolved to its
+-- declaration) always reaches that declaration, regardless of the
+-- receiver's class.
+
+local function is_statically_bound(climp, mimpl)
+	return not not (string_find(mimpl.AccessFlags, " final ") or
+		string_find(mimpl.AccessFlags, " private ") or
+		(climp.Analysis.AccessFlags and
+			string_find(climp.Analysis.AccessFlags, " final ")))
+end
+
+-- Tries to reuse a translation of a method from the code cache. The entry
+-- is only valid if every class the translation relied on is unchanged; its
+-- constants are then recreated from their recorded descriptions.
+
+local function load_cached_method(climp, classhash, n)
+	local entry = CodeCache.LoadMethod(classhash, n)
+	if not entry then
+		return nil
+	end
+
+	local climploader = climp:ClimpLoader()
+	for _, d in ipairs(entry.Dependencies) do
+		climploader:LoadClimp(d[1])
+		if (climploader:ClassHash(d[1]) ~= d[2]) then
+			return nil
+		end
+	end
+	local constants = {}
+	for i, r in ipairs(entry.Constants) do
+		local kind = r[1]
+		local c = climploader:LoadClimp(r[2])
+		if (kind == "climp") then
+			constants[i] = c
+		elseif (kind == "statics") then
+			constants[i] = c.Statics
+		elseif (kind == "ldc") then
+			constants[i] = c:GetConstantValue(r[3])
+		elseif (kind == "resolution") then
+			constants[i] = {Kind = r[3], Climp = c, Index = r[4]}
+		elseif (kind == "assumption") then
+			-- If the assumption has been broken since, the method just
+			-- takes the virtual path.
+			constants[i] = c:AssumeSingleImplementation(r[3], climp, n) or
+				{Valid = false}
+		else
+			return nil
+		end
+	end
+
+	if Options.TraceCompilations then
+		dbg("reusing: ", climp:ThisClass(), "::", n)
+	end
+	return entry.Constructor()(constants)
+end
+
+-- Writes a newly translated method to the code cache, provided that all
+-- its constants can be recreated. The classes it used are recorded along
+-- with their superclasses and interfaces, as their layouts and methods are
+-- baked into the translation.
+
+local function store_cached_method(climp, classhash, n, dependencies,
+		recipes, count, source)
+	for i = 1, count do
+		if not recipes[i] then
+			return
+		end
+	end
+
+	local climploader = climp:ClimpLoader()
+	local seen = {}
+	local list = {}
+	local function add(c)
+		if not c or seen[c] then
+			return
+		end
+		seen[c] = true
+
+		local name = c:ThisClass()
+		list[#list+1] = {name, climploader:ClassHash(name)}
+		add(c:SuperClimp())
+		for _, i in ipairs(c:Interfaces() or {}) do
+			add(i)
+		end
+	end
+	for c in pairs(dependencies) do
+		add(c)
+	end
+	table_sort(list,
+		function(a, b)
+			return a[1] < b[1]
+		end
+	)
+
+	CodeCache.StoreMethod(classhash, n, list, recipes, source)
 end
 
 -- This function does the bytecode compilation. It takes the bytecode and
 -- converts it into a Lua script, then compiles it and returns the method as
 -- a callable function.
+--
+-- If osrpc is supplied, this instead produces an on-stack replacement for
+-- an interpreted invocation: the function takes a table of the method's
+-- locals, and starts at osrpc (where the stack must be empty). Methods
+-- which need splitting can't be entered like this, so nil is returned.
+
+local function compile_method(climp, analysis, mimpl, osrpc)
+	local classhash
+	if CodeCache.Enabled() and not osrpc then
+		classhash = climp:ClimpLoader():ClassHash(analysis.ThisClass)
+		local m = load_cached_method(climp, classhash, mimpl.Name..mimpl.Descriptor)
+		if m then
+			return m
+		end
+	end
 
-local function compile_method(climp, analysis, mimpl)
 	if Options.TraceCompilations then
-		dbg("compiling: ", analysis.ThisClass, "::", mimpl.Name, mimpl.Descriptor)
+		dbg("compiling: ", analysis.ThisClass, "::", mimpl.Name, mimpl.Descriptor,
+			osrpc and (" at "..osrpc) or "")
 	end
 
 	local bytecode = mimpl.Code.Bytecode
+	local exceptiontable = mimpl.Code.ExceptionTable
 	local pos = 0
 	local sp = 0
 	local lineno = 2 -- include line of boilerplate before code
@@ -95,6 +750,12 @@ local function compile_method(climp, analysis, mimpl)
 	local seenopcodes = {} -- opcodes which we've already compiled
 	local wide = false -- was the last opcode 'wide'?
 	local output = {}
+	local maxstack = mimpl.Code.MaxStack -- including that of inlined methods
+	local localbase = nil -- when inlining, the stack slot holding local0
+	local throwpc = nil -- when inlining, the caller's pc for exceptions
+	local inlining = {[mimpl] = true} -- methods currently being expanded
+	local thisclimp, thismethod = climp, mimpl.Name..mimpl.Descriptor
+	local inlinedepth = 0
 
 	local function u1()
 		pos = pos + 1 -- increment first to apply +1 offset
@@ -123,116 +784,798 @@ local function compile_method(climp, analysis, mimpl)
 		return WWtoI(hi, lo)
 	end
 
-	local function s4()
-		local i = u4()
-		return ItoSI(i)
+	local function s4()
+		local i = u4()
+		return ItoSI(i)
+	end
+
+	local sw, uw -- assigned to either u1 or u2 depending on setting of wide
+
+	-- Ensures that the current stack pointer matches any recorded stack for
+	-- this address.
+	
+	local function checkstack(pc)
+		local csp = stacksize[pc]
+		if (csp == nil) then
+			stacksize[pc] = sp
+		elseif (csp ~= sp) then
+			dbg("stack mismatch (address "..pc.." is currently "..csp..", but should be "..sp..")")
+		end
+	end
+
+	-- Add a new entrypoint, recording the stack that it should have.
+	
+	local function addentrypoint(pc, newsp)
+		if not newsp then
+			newsp = sp
+		end
+
+		local csp = stacksize[pc]
+		if (csp ~= nil) then
+			if (csp ~= newsp) then
+				Utils.Throw("stack mismatch in target (address "..pc.." is currently "..csp..", but should be "..newsp..")")
+			end
+		else
+			stacksize[pc] = newsp
+		end
+
+		if not seenopcodes[pc] then
+			entrypoints[pc] = true
+		end
+	end
+
+	local function emitnonl(...)
+		local args = {...}
+		local argslen = select("#", ...)
+		for i = 1, argslen do
+			output[#output+1] = tostring(args[i])
+		end
+	end
+
+	local function emit(...)
+		emitnonl(...)
+		output[#output+1] = "\n"
+		lineno = lineno + 1
+	end
+
+	-- Add a constant to the (internal, per-method) constant pool. The recipe
+	-- describes how to recreate the constant when the method is loaded from
+	-- the code cache.
+
+	local constants = {}
+	local recipes = {}
+	local function constant(c, recipe)
+		assert(type(c) == "table")
+		local n = constants[c]
+		if n then
+			return n
+		end
+
+		constants[#constants+1] = c
+		recipes[#constants] = recipe
+		if (#constants <= MAX_CONSTANT_UPVALUES) then
+			n = "constant"..#constants
+		else
+			n = "constants["..#constants.."]"
+		end
+		constants[c] = n
+		return n
+	end
+
+	-- Returns a class which the translation depends on, if it's already been
+	-- loaded (and, if necessary, initialised); otherwise nil. Translation
+	-- never loads or initialises classes itself: references to classes which
+	-- aren't ready are resolved when the code using them first runs, by
+	-- Runtime.Resolve, so that branches which never execute cost nothing.
+
+	local dependencies = {}
+	local function loadedclimp(name, initialise)
+		local c = climp:ClimpLoader():FindLoadedClimp(name)
+		if not c or (initialise and not c.Initialised) then
+			return nil
+		end
+
+		dependencies[c] = true
+		return c
+	end
+
+	-- Returns the constant holding the descriptor of a constant pool
+	-- reference, for resolving it at run time (see Runtime.Resolve).
+
+	local descriptors = {}
+	local function descriptor(kind, i)
+		local key = climp:ThisClass().." "..kind.." "..i
+		local n = descriptors[key]
+		if not n then
+			n = constant({Kind = kind, Climp = climp, Index = i},
+				{"resolution", climp:ThisClass(), kind, i})
+			descriptors[key] = n
+		end
+		return n
+	end
+
+	-- Returns an expression which resolves a constant pool reference at run
+	-- time.
+
+	local function lazyref(kind, i)
+		local n = descriptor(kind, i)
+		return "("..n..".Resolved or runtime.Resolve("..n.."))"
+	end
+
+	-- A reference to an initialised class can be bound directly. But a
+	-- translation which is going into the code cache may be reused before
+	-- the class is initialised, so it still resolves the reference (which
+	-- initialises the class) the first time the code using it runs, just
+	-- as an unbound reference would.
+
+	local function initguard(kind, i)
+		if classhash then
+			local n = descriptor(kind, i)
+			emit("if not ", n, ".Resolved then runtime.Resolve(", n, ") end")
+		end
+	end
+
+	-- Returns an expression for the climp referred to by a class constant;
+	-- kind is "new" if it's being instantiated.
+
+	local function classref(i, kind)
+		local name = analysis.ClassConstants[i]
+		local c = loadedclimp(name, kind == "new")
+		if c then
+			if (kind == "new") then
+				initguard(kind, i)
+			end
+			return constant(c, {"climp", name})
+		end
+		return lazyref(kind, i)..".Climp"
+	end
+
+	-- Returns an expression for a constant loaded by ldc. Strings and
+	-- numbers are bound now, but the Class object for a class constant is
+	-- only looked up when the instruction runs, as getting it loads the
+	-- class.
+
+	local function ldcref(i)
+		local c = analysis.Constants[i]
+		if (type(c) == "table") and (c.tag == "CONSTANT_class") then
+			return "runtime.GetClassForClimp("..lazyref("class", i)..".Climp)"
+		end
+
+		c = climp:GetConstantValue(i)
+		if (type(c) == "table") then
+			return constant(c, {"ldc", climp:ThisClass(), i})
+		end
+		return Arithmetic.Literal(c)
+	end
+
+	-- Returns expressions for the table and slot holding a static field.
+
+	local function staticref(i, f)
+		local c = loadedclimp(f.Class, true)
+		if c then
+			local dc, slot = static_field_slot(c, f)
+			if dc.Initialised then
+				loadedclimp(dc:ThisClass(), true)
+				initguard("static", i)
+				return constant(dc.Statics, {"statics", dc:ThisClass()}), slot
+			end
+		end
+
+		local r = lazyref("static", i)
+		return r..".Statics", r..".Slot"
+	end
+
+	-- Returns an expression for the slot holding an instance field.
+
+	local function fieldref(i, f)
+		local c = loadedclimp(f.Class)
+		if c then
+			return instance_field_slot(c, f)
+		end
+		return lazyref("field", i)..".Slot"
+	end
+
+	-- Bind a statically known call target (as used by invokestatic and
+	-- invokespecial). Each target gets its own upvalue, initially holding a
+	-- trampoline which resolves the real method on first call and then
+	-- patches the upvalue, so subsequent calls are direct. Past a certain
+	-- number of targets we run out of upvalues and the targets are kept in a
+	-- table instead.
+
+	local bindings = {}
+	local function binding(c, name)
+		local key = c..":"..name
+		local n = bindings[key]
+		if n then
+			return n
+		end
+
+		local index = #bindings + 1
+		if (index <= MAX_BOUND_TARGETS) then
+			n = "target"..index
+		else
+			n = "targets["..index.."]"
+		end
+		bindings[index] = {c, name, n}
+		bindings[key] = n
+		return n
+	end
+
+	-- Returns the name of the variable holding a local. Inside inlined code,
+	-- the callee's locals live in the caller's stack, starting with the
+	-- slots its parameters were pushed into.
+
+	local spilled = {} -- locals which live in the frame table
+
+	local function localvar(i)
+		if localbase then
+			return "stack"..(localbase+i)
+		end
+		if spilled[i] then
+			return "frame["..i.."]"
+		end
+		return "local"..i
+	end
+
+	-- Returns the pc which exceptions thrown by the current instruction are
+	-- reported at; for inlined code, this is the call site in the caller.
+	-- Note that the pc is, at this point, *after* the instruction.
+
+	local function exceptionpc()
+		return throwpc or (pos-1)
+	end
+
+	-- Null check elimination. As each basic block is translated we track
+	-- which variables are known not to be null: 'this' (unless the method
+	-- overwrites it), the results of 'new' and string constants, and
+	-- anything which has already been checked. Values loaded from locals
+	-- remember where they came from, so checking the copy tells us about the
+	-- local too. Only the opcodes which can produce a reference update these
+	-- facts; anything else may leave a stale fact on a variable now holding
+	-- a primitive, but nothing ever null checks those. All facts are
+	-- forgotten at the start of each basic block.
+
+	local flow = scan_bytecode(bytecode, exceptiontable)
+	local leaders = flow.Leaders
+	local thisisnonnull = not string_find(mimpl.AccessFlags, " static ") and
+		not flow.StoreCounts[0]
+
+	-- Lua only allows 200 locals per function, so methods with too many
+	-- JVM locals keep the least used ones in a frame table instead. (This
+	-- is a Lua table rather than an FFI struct, as slots may hold object
+	-- references.) Methods big enough to be split into several functions
+	-- keep all their locals there, so that every part can see them.
+
+	local paramslots = string_find(mimpl.AccessFlags, " static ") and 0 or 1
+	for _, d in ipairs(mimpl.InParams) do
+		paramslots = paramslots + d
+	end
+
+	local splitpoints = nil
+	local maxlocals = mimpl.Code.MaxLocals
+	local registerlocals = maxlocals -- locals which are Lua locals
+	if (#bytecode > MAX_CHUNK_SIZE) and (#exceptiontable == 0) then
+		if osrpc then
+			return nil
+		end
+		splitpoints = find_split_points(flow)
+		for i = 0, maxlocals-1 do
+			spilled[i] = true
+		end
+		registerlocals = paramslots
+	elseif ((maxlocals + mimpl.Code.MaxStack) > MAX_FRAME_SLOTS) then
+		local uses = flow.UseCounts
+		local candidates = {}
+		for i = paramslots, maxlocals-1 do
+			candidates[#candidates+1] = i
+		end
+		table_sort(candidates,
+			function(a, b)
+				local ua, ub = uses[a] or 0, uses[b] or 0
+				if (ua ~= ub) then
+					return ua > ub
+				end
+				return a < b
+			end
+		)
+
+		local keep = MAX_FRAME_SLOTS - mimpl.Code.MaxStack - paramslots
+		for k = math.max(keep, 0)+1, #candidates do
+			spilled[candidates[k]] = true
+			registerlocals = registerlocals - 1
+		end
+	end
+	local nonnull = {} -- variables known not to be null
+	local aliases = {} -- stack variables which are copies of other variables
+
+	local function resetfacts()
+		nonnull = {}
+		aliases = {}
+		if thisisnonnull then
+			nonnull[localvar(0)] = true
+		end
+	end
+
+	-- Forget any copies of a variable which is about to be overwritten.
+
+	local function unalias(v)
+		for k, a in pairs(aliases) do
+			if (a == v) then
+				aliases[k] = nil
+			end
+		end
+	end
+
+	-- Records a new value in a variable, which is or isn't known to be
+	-- non-null.
+
+	local function setnonnull(v, known)
+		unalias(v)
+		nonnull[v] = known or nil
+		aliases[v] = nil
+	end
+
+	-- Records that one variable has been copied into another.
+
+	local function copyfacts(dest, src)
+		unalias(dest)
+		nonnull[dest] = nonnull[src]
+		aliases[dest] = aliases[src] or src
+	end
+
+	-- Records a permutation of the stack, as done by the dup opcodes: stack
+	-- slot base+i-1 receives the value previously in base+from[i].
+
+	local function permutefacts(base, from)
+		local oldnonnull = {}
+		local oldaliases = {}
+		for i, f in ipairs(from) do
+			local v = "stack"..(base+f)
+			oldnonnull[i] = nonnull[v]
+			oldaliases[i] = aliases[v]
+		end
+		for i = 1, #from do
+			local v = "stack"..(base+i-1)
+			unalias(v)
+			nonnull[v] = oldnonnull[i]
+			aliases[v] = oldaliases[i]
+		end
+	end
+
+	-- Expression stack. Unless disabled, values pushed by side-effect free
+	-- instructions aren't stored into their stack variables straight away;
+	-- the Lua expression computing them is remembered instead, and used
+	-- directly by whatever consumes the value, so 'iload a; iload b; iadd;
+	-- istore c' becomes a single assignment. Pending expressions are
+	-- materialised before instructions which don't understand them, at
+	-- basic block boundaries, and whenever a variable one of them reads is
+	-- about to change. (The type of each slot is implied by the opcodes
+	-- which produce it, and longs are always int64_t cdata, so no further
+	-- type information is needed to combine them.)
+	--
+	-- Expressions may refer to the variables of stack slots above their own
+	-- (operands which had already been materialised), so while anything is
+	-- pending, stack variables are only written by materialising all of it
+	-- from the bottom up.
+
+	local pending = {} -- stack slot -> Lua expression
+
+	local function flush()
+		if next(pending) then
+			local slots = {}
+			for k in pairs(pending) do
+				slots[#slots+1] = k
+			end
+			table_sort(slots)
+			for _, k in ipairs(slots) do
+				emit("stack", k, " = ", pending[k])
+			end
+			pending = {}
+		end
+	end
+
+	-- Sets the value of a stack slot.
+
+	local function push(slot, e)
+		if Options.Expressions and (#e <= MAX_EXPRESSION_LENGTH) then
+			pending[slot] = e
+		else
+			flush()
+			if (e ~= "stack"..slot) then
+				emit("stack", slot, " = ", e)
+			end
+		end
+	end
+
+	-- Pops a stack slot, returning an expression for its value.
+
+	local function operand(slot)
+		local e = pending[slot]
+		if e then
+			pending[slot] = nil
+			return e
+		end
+		return "stack"..slot
+	end
+
+	-- Materialises any pending expressions which read a variable which is
+	-- about to be assigned to.
+
+	local function invalidate(v)
+		local pattern = "%f[%w_]"..(string_gsub(v, "[%[%]]", "%%%0"))
+		if string_find(v, "[%w_]$") then
+			pattern = pattern.."%f[^%w_]"
+		end
+		for _, e in pairs(pending) do
+			if string_find(e, pattern) then
+				flush()
+				return
+			end
+		end
+	end
+
+	-- Bounds check elimination. Array accesses inside counted loops, whose
+	-- array and index were pushed straight from the loop's array and
+	-- induction variable (followed only by simple expressions which leave
+	-- them alone), are known to be in bounds.
+
+	local countedloops = find_counted_loops(bytecode, exceptiontable, flow)
+	local prevpc = {} -- the previous instruction in the same basic block
+	local currentpc -- the instruction being translated
+
+	local function provenindex(arrayslot)
+		if localbase or leaders[currentpc] or (#countedloops == 0) then
+			return false
+		end
+
+		local indexslot = arrayslot + 1
+		local q = prevpc[currentpc]
+		local steps = 0
+		while q and (stacksize[q] ~= indexslot) do
+			local pops = expression_pops[string_byte(bytecode, q+1)]
+			steps = steps + 1
+			if not pops or ((stacksize[q] - pops) <= indexslot) or (steps > 32) then
+				return false
+			end
+			q = prevpc[q]
+		end
+
+		local p = q and prevpc[q]
+		if not p or (stacksize[p] ~= arrayslot) or
+				(prevpc[p] and (string_byte(bytecode, prevpc[p]+1) == 0xc4)) then
+			return false
+		end
+
+		local i = local_operand(bytecode, q, 0x15, 0x1a)
+		local a = local_operand(bytecode, p, 0x19, 0x2a)
+		for _, loop in ipairs(countedloops) do
+			if (currentpc >= loop[1]) and (currentpc < loop[2]) and
+					(i == loop[3]) and (a == loop[4]) then
+				return true
+			end
+		end
+		return false
+	end
+
+	-- Emit a check that the index of an array access is in bounds, unless
+	-- it's known to be.
+
+	local boundschecked = false
+	local function boundscheck(arrayslot)
+		if provenindex(arrayslot) then
+			return
+		end
+
+		boundschecked = true
+		local a = "stack"..arrayslot
+		local i = "stack"..(arrayslot+1)
+		emitnonl("if (", i, " < 0) or (", i, " >= ", a, ".length) then ")
+		if (#exceptiontable > 0) then
+			emitnonl("epc=", exceptionpc(), " ")
+		end
+		emitnonl("goto outofbounds end ")
+	end
+
+	-- Emit a check that an integer divisor isn't zero.
+
+	local divisionchecked = false
+	local function divisioncheck(divisor)
+		divisionchecked = true
+		emitnonl("if (", divisor, " == 0) then ")
+		if (#exceptiontable > 0) then
+			emitnonl("epc=", exceptionpc(), " ")
+		end
+		emitnonl("goto divisionbyzero end ")
+	end
+
+	-- Returns copies of the current facts, so they can be restored when
+	-- translating alternative paths.
+
+	local function savefacts()
+		local n = {}
+		local a = {}
+		for k, v in pairs(nonnull) do
+			n[k] = v
+		end
+		for k, v in pairs(aliases) do
+			a[k] = v
+		end
+		return n, a
+	end
+
+	-- Emit a check for null for the specified variable, unless it's known
+	-- not to be null.
+
+	local nullchecked = false
+	local function nullcheck(v)
+		if Options.CheckNullPointers and not nonnull[v] then
+			nullchecked = true
+			if (#exceptiontable > 0) then
+				emitnonl("if (", v, " == nil) then epc=", exceptionpc(), " goto nullpointer end ")
+			else
+				emitnonl("if (", v, " == nil) then goto nullpointer end ")
+			end
+
+			nonnull[v] = true
+			if aliases[v] then
+				nonnull[aliases[v]] = true
+			end
+		end
+	end
+
+	-- Allocate an inline cache for a virtual call site. Each cache occupies
+	-- InlineCacheWays pairs of (climp, method) slots in the per-method 'ic'
+	-- table; this returns the index of the first slot.
+
+	local inlinecaches = 0
+	local function inlinecache()
+		local base = inlinecaches*Runtime.InlineCacheWays*2 + 1
+		inlinecaches = inlinecaches + 1
+		return base
+	end
+
+	-- Perform a virtual method lookup through an inline cache, leaving the
+	-- method in 'm'. On a miss, the method is fetched with the supplied
+	-- expression (which may refer to the receiver's climp as 'c'). This opens
+	-- a block which the caller must close.
+
+	local function virtuallookup(self, lookup)
+		local base = inlinecache()
+		local last = base + (Runtime.InlineCacheWays-1)*2
+		emitnonl("do local c = ", self, ".Climp local m ")
+		for slot = base, last, 2 do
+			if (slot == base) then
+				emitnonl("if ")
+			else
+				emitnonl("elseif ")
+			end
+			emitnonl("(c == ic[", slot, "]) then m = ic[", slot+1, "] ")
+		end
+		emitnonl("else m = ", lookup, " if not ic[", last, "] then ",
+			"runtime.InlineCacheFill(ic, ", base, ", c, m) end end ")
+	end
+
+	-- Pops a method's parameters off the stack, returning the argument list
+	-- to call it with.
+	
+	local function methodargs(f, self)
+		local numinparams = #f.InParams
+		local inparams = {}
+		if self then
+			inparams[#inparams+1] = self
+		end
+		local o = #inparams
+		for i = numinparams, 1, -1 do
+			local d = f.InParams[i]
+			sp = sp - d
+			inparams[o+i] = "stack"..sp
+		end
+
+		return table_concat(inparams, ", ")
 	end
 
-	local sw, uw -- assigned to either u1 or u2 depending on setting of wide
+	-- Returns true if exceptions thrown by the current instruction may be
+	-- caught by this method.
 
-	-- Ensures that the current stack pointer matches any recorded stack for
-	-- this address.
-	
-	local function checkstack(pc)
-		local csp = stacksize[pc]
-		if (csp == nil) then
-			stacksize[pc] = sp
-		elseif (csp ~= sp) then
-			dbg("stack mismatch (address "..pc.." is currently "..csp..", but should be "..sp..")")
+	local function covered()
+		local pc = exceptionpc()
+		for _, t in ipairs(exceptiontable) do
+			if (pc >= t.start_pc) and (pc < t.end_pc) then
+				return true
+			end
 		end
+		return false
 	end
 
-	-- Add a new entrypoint, recording the stack that it should have.
-	
-	local function addentrypoint(pc, newsp)
-		if not newsp then
-			newsp = sp
-		end
+	-- Emits a call to something which may throw. Java exceptions propagate
+	-- as Lua errors, so normally this is just a call; only where this method
+	-- has a handler covering the call is it protected, so we can catch them.
 
-		local csp = stacksize[pc]
-		if (csp ~= nil) then
-			if (csp ~= newsp) then
-				Utils.Throw("stack mismatch in target (address "..pc.." is currently "..csp..", but should be "..newsp..")")
+	local function throwingcall(result, fn, args)
+		if covered() then
+			if (args ~= "") then
+				args = ", "..args
 			end
+			emit("ok, e = pcall(", fn, args, ") if not ok then epc=", exceptionpc(),
+				" goto exceptionhandler end")
+			if result then
+				emit(result, " = e")
+			end
+		elseif result then
+			emit(result, " = ", fn, "(", args, ")")
 		else
-			stacksize[pc] = newsp
+			emit(fn, "(", args, ")")
 		end
+	end
 
-		if not seenopcodes[pc] then
-			entrypoints[pc] = true
+	-- Emits code to throw an exception.
+
+	local function throw(v)
+		if covered() then
+			emit("e = ", v, " epc=", exceptionpc(), " goto exceptionhandler")
+		else
+			emit("error(", v, ")")
 		end
 	end
 
-	local function emitnonl(...)
-		local args = {...}
-		local argslen = select("#", ...)
-		for i = 1, argslen do
-			output[#output+1] = tostring(args[i])
+	-- Perform a method call, leaving any result on the stack.
+
+	local function methodcall(fn, f, self)
+		local args = methodargs(f, self)
+		if self then
+			sp = sp - 1
+		end
+
+		local result
+		if (f.OutParams > 0) then
+			result = "stack"..sp
+			setnonnull(result, false)
 		end
+		throwingcall(result, fn, args)
+		sp = sp + f.OutParams
 	end
 
-	local function emit(...)
-		emitnonl(...)
-		output[#output+1] = "\n"
-		lineno = lineno + 1
+	-- Emits a virtual call through an inline cache, with the supplied
+	-- lookup expression used on a miss (see virtuallookup).
+
+	local function virtualcall(f, self, lookup)
+		virtuallookup(self, lookup)
+		methodcall("m", f, self)
+		emit("end")
 	end
 
-	-- Add a constant to the (internal, per-method) constant pool.
+	-- Returns true if a method is small and simple enough to inline: it must
+	-- be straight-line code, with no exception handlers, which fits in the
+	-- inlining budget. Methods with a native intrinsic are never inlined, as
+	-- that would bypass the intrinsic.
 
-	local constants = {}
-	local function constant(c)
-		assert(type(c) == "table")
-		local n = constants[c]
-		if n then
-			return n
+	local opcodemap
+
+	local function inlineable(dc, mimpl)
+		if string_find(mimpl.AccessFlags, " native ") or not mimpl.Code or
+				(#mimpl.Code.ExceptionTable > 0) or
+				Runtime.FindNativeMethod(dc:ThisClass(), mimpl.Name..mimpl.Descriptor) then
+			return false
 		end
 
-		constants[#constants+1] = c
-		n = "constant"..#constants
-		constants[c] = n
-		return n
-	end
+		local code = mimpl.Code.Bytecode
+		if (#code > Options.InlineSize) then
+			return false
+		end
 
-	-- Emit a check for null for the specified variable.
-	
-	local function nullcheck(v)
-		if Options.CheckNullPointers then
-			emitnonl("if (", v, " == nil) then goto nullpointer end ")
+		local i = 1
+		while (i <= #code) do
+			local opcode = string_byte(code, i)
+			local size = inlineable_opcode_sizes[opcode]
+			if not size or not opcodemap[opcode] then
+				return false
+			end
+			if return_sizes[opcode] then
+				return true
+			end
+			i = i + size
 		end
+		return false
 	end
 
-	-- Perform a method call.
-	
-	local function methodcall(f, self)
-		local numinparams = #f.InParams
-		local inparams = {}
-		if self then
-			inparams[#inparams+1] = self
+	-- Try to expand a call inline, instead of emitting a real call. The
+	-- method's bytecode is translated in place, with its locals mapped onto
+	-- the caller's stack slots starting with the parameters; its own stack
+	-- follows. Returns false if the method isn't suitable.
+
+	local function inlinecall(c, f)
+		if not Options.Inline or (inlinedepth >= MAX_INLINE_DEPTH) then
+			return false
 		end
-		local o = #inparams
-		for i = numinparams, 1, -1 do
-			local d = f.InParams[i]
-			sp = sp - d
-			inparams[o+i] = "stack"..sp
+
+		local dc, dmimpl = c:FindMethodDeclaration(f.Name..f.Descriptor)
+		if not dmimpl or inlining[dmimpl] or not inlineable(dc, dmimpl) then
+			return false
+		end
+
+		local base = sp - f.Size
+		if not string_find(dmimpl.AccessFlags, " static ") then
+			base = base - 1
+		end
+		local code = dmimpl.Code
+		local top = base + code.MaxLocals + code.MaxStack
+		if ((registerlocals + top) > MAX_FRAME_SLOTS) then
+			return false
+		end
+		if (top > maxstack) then
+			maxstack = top
+		end
+
+		if Options.TraceCompilations then
+			dbg("inlining: ", dc:ThisClass(), "::", f.Name, f.Descriptor)
+		end
+		emit("-- inlined ", dc:ThisClass(), "::", f.Name, f.Descriptor)
+
+		local oldclimp, oldanalysis, oldbytecode, oldpos = climp, analysis, bytecode, pos
+		local oldlocalbase, oldthrowpc = localbase, throwpc
+		throwpc = exceptionpc()
+		climp, analysis, bytecode, pos = dc, dc.Analysis, code.Bytecode, 0
+		localbase = base
+		sp = base + code.MaxLocals
+		inlining[dmimpl] = true
+		inlinedepth = inlinedepth + 1
+
+		while true do
+			uw = u1
+			sw = s1
+			local opcode = u1()
+			local size = return_sizes[opcode]
+			if size then
+				if (size > 0) then
+					setnonnull("stack"..base, nonnull["stack"..(sp-size)])
+					local e = operand(sp-size)
+					for k in pairs(pending) do
+						if (k >= base) then
+							pending[k] = nil -- left on the callee's stack
+						end
+					end
+					flush()
+					if (e ~= "stack"..base) then
+						emit("stack", base, " = ", e)
+					end
+				end
+				break
+			end
+			if not expression_opcodes[opcode] then
+				flush()
+			end
+			opcodemap[opcode]()
 		end
 
-		emitnonl("(")
-		emitnonl(table_concat(inparams, ", "))
-		emitnonl(") ")
+		inlinedepth = inlinedepth - 1
+		inlining[dmimpl] = nil
+		climp, analysis, bytecode, pos = oldclimp, oldanalysis, oldbytecode, oldpos
+		localbase, throwpc = oldlocalbase, oldthrowpc
+		sp = base + f.OutParams
+		return true
 	end
 
-	-- Emits code to check whether an exception is thrown. Note that the pc
-	-- is, at this point, *after* the instruction that threw the exception.
-	
-	local function checkexception()
-		emit("if e then epc=", pos-1, " goto exceptionhandler end")
+	-- Emits a call to a particular method declared in climp dc, which a call
+	-- on climp c has been resolved to; it's inlined if possible.
+
+	local function directcall(c, dc, f, self)
+		if inlinecall(c, f) then
+			return
+		end
+
+		methodcall(binding(constant(dc, {"climp", dc:ThisClass()}),
+			f.Name..f.Descriptor), f, self)
 	end
 
 	-- Emit the function prologue.
 	
 	emitnonl("function(")
 	local minlocals = 1
-	do
+	local params = {} -- the locals which hold parameters
+	if osrpc then
+		-- All the locals come from the interpreter.
+		emitnonl("osr")
+	else
 		local first = true
 		
 		-- If this isn't a static method, local0 is always an implicit
@@ -240,6 +1583,7 @@ local function compile_method(climp, analysis, mimpl)
 
 		if not string_find(mimpl.AccessFlags, " static ") then
 			emitnonl("local0")
+			params[#params+1] = 0
 			minlocals = 2
 			first = false
 		end
@@ -252,78 +1596,250 @@ local function compile_method(climp, analysis, mimpl)
 			end
 			first = false
 			emitnonl("local", minlocals-1)
+			params[#params+1] = minlocals-1
 			minlocals = minlocals + d
 		end
 	end
 	emit(")")
 
-	-- Declare the variables we're going to put our stack and locals in.
+	-- Declare the variables we're going to put our stack and locals in. The
+	-- stack isn't declared until we know how much inlined methods need.
 
-	for i = 1, mimpl.Code.MaxStack do
-		emit("local stack", i-1)
-	end
+	local stackdeclaration = #output + 1
+	emit("")
 
+	if next(spilled) or splitpoints then
+		emit("local frame = {}")
+	end
+	for _, i in ipairs(params) do
+		if spilled[i] then
+			emit("frame[", i, "] = local", i)
+		end
+	end
 	for i = minlocals, mimpl.Code.MaxLocals do
-		emit("local local", i-1)
+		if spilled[i-1] then
+			if osrpc then
+				emit("frame[", i-1, "] = osr[", i-1, "]")
+			end
+		elseif osrpc then
+			emit("local local", i-1, " = osr[", i-1, "]")
+		else
+			emit("local local", i-1)
+		end
 	end
 
 	-- Internal variables used for exception handling.
-	emit("local _, e, epc")
+	emit("local e, epc, ok")
 
 	-- Common opcodes.
 	
 	local function pushconst_op(size, value)
 		return function()
-			emit("stack", sp, " = ", value)
+			setnonnull("stack"..sp, false)
+			push(sp, tostring(value))
 			sp = sp + size
 		end
 	end
 
-	local function arraystore_op(size)
+	-- Reference arrays are stored one-based (see NewAArray in Runtime), so
+	-- their indices are offset by one.
+
+	local function arraystore_op(size, offset)
+		offset = offset or ""
 		return function()
 			sp = sp - (2+size)
 			nullcheck("stack"..sp)
-			emit("_, e = stack", sp, ":ArrayPut(stack", sp+1, ", stack", sp+2, ")")
-			checkexception()
+			boundscheck(sp)
+			emit("stack", sp, ".store[stack", sp+1, offset, "] = stack", sp+2)
 		end
 	end
 
-	local function arrayload_op(size)
+	local function arrayload_op(size, offset)
+		offset = offset or ""
 		return function()
 			sp = sp - 2
 			nullcheck("stack"..sp)
-			emit("stack", sp, ", e = stack", sp, ":ArrayGet(stack", sp+1, ")")
-			checkexception()
+			boundscheck(sp)
+			emit("stack", sp, " = stack", sp, ".store[stack", sp+1, offset, "]")
+			setnonnull("stack"..sp, false)
 			sp = sp + size
 		end
 	end
 
+	local function localstore(size, index)
+		sp = sp - size
+		local v = localvar(index)
+		local e = operand(sp)
+		invalidate(v)
+		setnonnull(v, nonnull["stack"..sp])
+		emit(v, " = ", e)
+	end
+
+	local function localload(size, index)
+		copyfacts("stack"..sp, localvar(index))
+		push(sp, localvar(index))
+		sp = sp + size
+	end
+
 	local function localstore_op(size, index)
 		return function()
-			sp = sp - size
-			emit("local", index, " = stack", sp)
+			localstore(size, index)
 		end
 	end
 
 	local function localload_op(size, index)
 		return function()
-			emit("stack", sp, " = local", index)
+			localload(size, index)
+		end
+	end
+
+	-- Pops operands of the given sizes, and pushes the result of combining
+	-- them with a template.
+
+	local function expression_op(size, operandsizes, template)
+		local total = 0
+		for _, n in ipairs(operandsizes) do
+			total = total + n
+		end
+		return function()
+			sp = sp - total
+			local operands = {}
+			local slot = sp
+			for i, n in ipairs(operandsizes) do
+				operands[i] = operand(slot)
+				slot = slot + n
+			end
+			push(sp, string_format(template, unpack(operands)))
 			sp = sp + size
 		end
 	end
+
+	-- Conditional branches which compare the top of the stack against a
+	-- constant.
+
+	local function if_op(cmp, value)
+		return function()
+			local delta = s2() - 3
+			sp = sp - 1
+			local a = operand(sp)
+			flush()
+			emit("if (", a, " ", cmp, " ", value, ") then goto pc_", pos+delta, " end")
+			addentrypoint(pos+delta, sp)
+		end
+	end
 	
+	-- Emits a switch as a binary decision tree. The cases are supplied as a
+	-- sorted list of non-overlapping {low, high, pc} ranges; anything not
+	-- covered by one goes to the default. lo and hi, if not nil, are bounds
+	-- already known to apply to the key.
+
+	local function switchtree(key, ranges, first, last, lo, hi, default)
+		if (first > last) then
+			emit("goto pc_", default)
+		elseif (first == last) then
+			local r = ranges[first]
+			local conditions = {}
+			if not lo or (lo < r[1]) then
+				conditions[#conditions+1] = "("..key.." >= "..r[1]..")"
+			end
+			if not hi or (hi > r[2]) then
+				conditions[#conditions+1] = "("..key.." <= "..r[2]..")"
+			end
+			if (#conditions == 0) or (r[3] == default) then
+				emit("goto pc_", r[3])
+			else
+				emit("if ", table_concat(conditions, " and "), " then goto pc_", r[3], " end")
+				emit("goto pc_", default)
+			end
+		else
+			local mid = math_floor((first + last) / 2)
+			local pivot = ranges[mid+1][1]
+			emit("if (", key, " < ", pivot, ") then")
+			switchtree(key, ranges, first, mid, lo, pivot-1, default)
+			emit("else")
+			switchtree(key, ranges, mid+1, last, pivot, hi, default)
+			emit("end")
+		end
+	end
+
+	-- Reads the operands of a tableswitch or lookupswitch (after skipping
+	-- the alignment padding), as the default pc and a list of {key, pc}
+	-- cases in key order.
+
+	local function switchoperands(lookup)
+		local pc = pos - 1
+		while ((pos % 4) ~= 0) do
+			u1()
+		end
+
+		local default = pc + s4()
+		local cases = {}
+		if lookup then
+			local npairs = s4()
+			for i = 1, npairs do
+				local key = s4()
+				cases[i] = {key, pc + s4()}
+			end
+		else
+			local low = s4()
+			local high = s4()
+			for i = low, high do
+				cases[#cases+1] = {i, pc + s4()}
+			end
+		end
+		return default, cases
+	end
+
+	-- Translates a switch, given its cases; consecutive keys going to the
+	-- same place are merged into ranges before building the tree.
+
+	local function switch_op(lookup)
+		return function()
+			local default, cases = switchoperands(lookup)
+			sp = sp - 1
+			local key = "stack"..sp
+
+			local ranges = {}
+			for _, c in ipairs(cases) do
+				local r = ranges[#ranges]
+				if r and (r[2] == (c[1] - 1)) and (r[3] == c[2]) then
+					r[2] = c[1]
+				else
+					ranges[#ranges+1] = {c[1], c[1], c[2]}
+				end
+				addentrypoint(c[2], sp)
+			end
+			addentrypoint(default, sp)
+
+			-- A tableswitch covers a contiguous range of keys, so once the
+			-- key is known to be in it no further range checks are needed.
+
+			local lo, hi
+			if not lookup and (#ranges > 0) then
+				lo = ranges[1][1]
+				hi = ranges[#ranges][2]
+				emit("if (", key, " < ", lo, ") or (", key, " > ", hi, ") then goto pc_", default, " end")
+			end
+			switchtree(key, ranges, 1, #ranges, lo, hi, default)
+			sp = nil
+		end
+	end
+
 	local function ifcmp_op(cmp)
 		return function()
 			local delta = s2() - 3
 			sp = sp - 2
-			emit("if (stack", sp, " ", cmp, " stack", sp+1, ") then goto pc_", pos+delta, " end")
+			local a = operand(sp)
+			local b = operand(sp+1)
+			flush()
+			emit("if (", a, " ", cmp, " ", b, ") then goto pc_", pos+delta, " end")
 			addentrypoint(pos+delta, sp)
 		end
 	end
 
 	-- This table expands all the opcodes.
 
-	local opcodemap = {
+	opcodemap = {
 		[0x00] = function() -- nop
 			emit("-- nop")
 		end,
@@ -336,8 +1852,8 @@ local function compile_method(climp, analysis, mimpl)
 		[0x06] = pushconst_op(1, 3), -- iconst_3
 		[0x07] = pushconst_op(1, 4), -- iconst_4
 		[0x08] = pushconst_op(1, 5), -- iconst_5
-		[0x09] = pushconst_op(2, 0), -- lconst_0
-		[0x0a] = pushconst_op(2, 1), -- lconst_1
+		[0x09] = pushconst_op(2, "0LL"), -- lconst_0
+		[0x0a] = pushconst_op(2, "1LL"), -- lconst_1
 		[0x0b] = pushconst_op(1, 0), -- fconst_0
 		[0x0c] = pushconst_op(1, 1), -- fconst_1
 		[0x0d] = pushconst_op(1, 2), -- fconst_2
@@ -346,71 +1862,55 @@ local function compile_method(climp, analysis, mimpl)
 
 		[0x10] = function() -- bipush
 			local i = s1()
-			emit("stack", sp, " = ", i)
+			push(sp, tostring(i))
 			sp = sp + 1
 		end,
 
 		[0x11] = function() -- sipush
 			local i = s2()
-			emit("stack", sp, " = ", i)
+			push(sp, tostring(i))
 			sp = sp + 1
 		end,
 
 		[0x12] = function() -- ldc
 			local i = u1()
-			local c = climp:GetConstantValue(i)
-			if (type(c) == "table") then
-				c = constant(c)
-			end
-			emit("stack", sp, " = ", c)
+			setnonnull("stack"..sp, type(analysis.Constants[i]) == "table")
+			push(sp, ldcref(i))
 			sp = sp + 1
 		end,
 
 		[0x13] = function() -- ldc
 			local i = u2()
-			local c = climp:GetConstantValue(i)
-			if (type(c) == "table") then
-				c = constant(c)
-			end
-			emit("stack", sp, " = ", c)
+			setnonnull("stack"..sp, type(analysis.Constants[i]) == "table")
+			push(sp, ldcref(i))
 			sp = sp + 1
 		end,
 
 		[0x14] = function() -- ldc2_w
 			local i = u2()
 			local c = climp:GetConstantValue(i)
-			emit("stack", sp, " = ", c)
+			push(sp, Arithmetic.Literal(c))
 			sp = sp + 2
 		end,
 
 		[0x15] = function() -- iload
-			local i = uw()
-			emit("stack", sp, " = local", i)
-			sp = sp + 1
+			localload(1, uw())
 		end,
 
 		[0x16] = function() -- lload
-			local i = uw()
-			emit("stack", sp, " = local", i)
-			sp = sp + 2
+			localload(2, uw())
 		end,
 
 		[0x17] = function() -- fload
-			local i = uw()
-			emit("stack", sp, " = local", i)
-			sp = sp + 1
+			localload(1, uw())
 		end,
 
 		[0x18] = function() -- dload
-			local i = uw()
-			emit("stack", sp, " = local", i)
-			sp = sp + 2
+			localload(2, uw())
 		end,
 
 		[0x19] = function() -- aload
-			local i = uw()
-			emit("stack", sp, " = local", i)
-			sp = sp + 1
+			localload(1, uw())
 		end,
 
 		[0x1a] = localload_op(1, 0), -- iload_0
@@ -438,39 +1938,29 @@ local function compile_method(climp, analysis, mimpl)
 		[0x2f] = arrayload_op(2), -- laload
 		[0x30] = arrayload_op(1), -- faload
 		[0x31] = arrayload_op(2), -- daload
-		[0x32] = arrayload_op(1), -- aaload
+		[0x32] = arrayload_op(1, "+1"), -- aaload
 		[0x33] = arrayload_op(1), -- baload
 		[0x34] = arrayload_op(1), -- caload
 		[0x35] = arrayload_op(1), -- saload
 
 		[0x36] = function() -- istore
-			local var = uw()
-			sp = sp - 1
-			emit("local", var, " = stack", sp)
+			localstore(1, uw())
 		end,
 
 		[0x37] = function() -- lstore
-			local var = uw()
-			sp = sp - 2
-			emit("local", var, " = stack", sp)
+			localstore(2, uw())
 		end,
 
 		[0x38] = function() -- fstore
-			local var = uw()
-			sp = sp - 1
-			emit("local", var, " = stack", sp)
+			localstore(1, uw())
 		end,
 
 		[0x39] = function() -- dstore
-			local var = uw()
-			sp = sp - 2
-			emit("local", var, " = stack", sp)
+			localstore(2, uw())
 		end,
 
 		[0x3a] = function() -- astore
-			local var = uw()
-			sp = sp - 1
-			emit("local", var, " = stack", sp)
+			localstore(1, uw())
 		end,
 
 		[0x3b] = localstore_op(1, 0), -- istore_0
@@ -498,34 +1988,50 @@ local function compile_method(climp, analysis, mimpl)
 		[0x50] = arraystore_op(2), -- lastore
 		[0x51] = arraystore_op(1), -- fastore
 		[0x52] = arraystore_op(2), -- dastore
-		[0x53] = arraystore_op(1), -- aastore
+		[0x53] = arraystore_op(1, "+1"), -- aastore
 		[0x54] = arraystore_op(1), -- bastore
 		[0x55] = arraystore_op(1), -- castore
 		[0x56] = arraystore_op(1), -- sastore
 
 		[0x57] = function() -- pop
 			sp = sp - 1
+			pending[sp] = nil
 			emit("-- pop")
 		end,
 
 		[0x58] = function() -- pop2
 			sp = sp - 2
+			pending[sp] = nil
+			pending[sp+1] = nil
 			emit("-- pop2")
 		end,
 
 		[0x59] = function() -- dup
+			-- Only simple expressions are worth evaluating twice.
+			local e = pending[sp-1]
+			if not e or not string_find(e, "^%-?[%w_%.]+$") then
+				flush()
+				e = nil
+			end
 			sp = sp + 1
-			emit("stack", sp-1, " = stack", sp-2)
+			copyfacts("stack"..(sp-1), "stack"..(sp-2))
+			if e then
+				pending[sp-1] = e
+			else
+				emit("stack", sp-1, " = stack", sp-2)
+			end
 		end,
 
 		[0x5a] = function() -- dup_x1
 			sp = sp - 2
+			permutefacts(sp, {1, 0, 1})
 			emit("do local v2, v1 = stack", sp, ", stack", sp+1, " stack", sp, "=v1 stack", sp+1, "=v2 stack", sp+2, "=v1 end")
 			sp = sp + 3
 		end,
 
 		[0x5b] = function() -- dup_x2
 			sp = sp - 3
+			permutefacts(sp, {2, 0, 1, 2})
 			emitnonl("do local v3, v2, v1 = stack", sp, ", stack", sp+1, ", stack", sp+2)
 			emitnonl(" stack", sp, "=v1")
 			emitnonl(" stack", sp+1, "=v3")
@@ -537,12 +2043,14 @@ local function compile_method(climp, analysis, mimpl)
 
 		[0x5c] = function() -- dup2
 			sp = sp + 2
+			permutefacts(sp-4, {0, 1, 0, 1})
 			emitnonl("stack", sp-2, " = stack", sp-4, " ")
 			emit("stack", sp-1, " = stack", sp-3)
 		end,
 
 		[0x5d] = function() -- dup2_x1
 			sp = sp - 3
+			permutefacts(sp, {1, 2, 0, 1, 2})
 			emitnonl("do local v3, v2, v1 = stack", sp, ", stack", sp+1, ", stack", sp+2)
 			emitnonl(" stack", sp, "=v2")
 			emitnonl(" stack", sp+1, "=v1")
@@ -553,174 +2061,110 @@ local function compile_method(climp, analysis, mimpl)
 			sp = sp + 5
 		end,
 
-		[0x60] = function() -- iadd
-			emit("stack", sp-2, " = tonumber(cast('int32_t', cast('int32_t', stack", sp-2, ") + cast('int32_t', stack", sp-1, ")))")
-			sp = sp - 1
-		end,
-
-		[0x61] = function() -- ladd
-			emit("stack", sp-4, " = stack", sp-4, " + stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x62] = function() -- fadd
-			emit("stack", sp-2, " = stack", sp-2, " + stack", sp-1)
-			sp = sp - 1
-		end,
-
-		[0x63] = function() -- dadd
-			emit("stack", sp-4, " = stack", sp-4, " + stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x64] = function() -- isub
-			emit("stack", sp-2, " = tonumber(cast('int32_t', stack", sp-2, " - stack", sp-1, "))")
-			sp = sp - 1
-		end,
-
-		[0x65] = function() -- lsub
-			emit("stack", sp-4, " = stack", sp-4, " - stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x66] = function() -- fsub
-			emit("stack", sp-2, " = stack", sp-2, " - stack", sp-1)
-			sp = sp - 1
-		end,
-
-		[0x68] = function() -- imul
-			emit("stack", sp-2, " = tonumber(cast('int32_t', cast('int32_t', stack", sp-2, ") * cast('int32_t', stack", sp-1, ")))")
-			sp = sp - 1
-		end,
-
-		[0x69] = function() -- lmul
-			emit("stack", sp-4, " = stack", sp-4, " * stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x6a] = function() -- fmul
-			emit("stack", sp-2, " = stack", sp-2, " * stack", sp-1)
-			sp = sp - 1
-		end,
-
-		[0x6c] = function() -- idiv
-			emit("stack", sp-2, " = tonumber(cast('int32_t', stack", sp-2, " / stack", sp-1, "))")
-			sp = sp - 1
-		end,
-
-		[0x6b] = function() -- dmul
-			emit("stack", sp-4, " = stack", sp-4, " * stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x6d] = function() -- ldiv
-			emit("stack", sp-4, " = stack", sp-4, " / stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x6e] = function() -- fdiv
-			emit("stack", sp-2, " = stack", sp-2, " / stack", sp-1)
-			sp = sp - 1
-		end,
-
-		[0x6f] = function() -- ddiv
-			emit("stack", sp-4, " = stack", sp-4, " / stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x67] = function() -- dsub
-			emit("stack", sp-4, " = stack", sp-4, " - stack", sp-2)
-			sp = sp - 2
-		end,
-
-		[0x70] = function() -- irem
-			emit("stack", sp-2, " = tonumber(cast('int32_t', stack", sp-2, " % stack", sp-1, "))")
-			sp = sp - 1
-		end,
-
-		[0x71] = function() -- lrem
+		[0x5e] = function() -- dup2_x2
 			sp = sp - 4
-			emit("stack", sp, " = stack", sp, " % stack", sp+2)
-			sp = sp + 2
-		end,
-
-		[0x74] = function() -- ineg
-			emit("stack", sp-1, " = tonumber(cast('int32_t', -stack", sp-1, "))")
-		end,
-
-		[0x75] = function() -- lneg
-			emit("stack", sp-2, " = cast('int64_t', -stack", sp-2, ")")
-		end,
-
-		[0x78] = function() -- ishl
-			emit("stack", sp-2, " = bit_lshift(stack", sp-2, ", stack", sp-1, ")")
-			sp = sp - 1
-		end,
-
-		[0x7a] = function() -- ishr
-			emit("stack", sp-2, " = bit_arshift(stack", sp-2, ", stack", sp-1, ")")
-			sp = sp - 1
-		end,
-
-		[0x7e] = function() -- iand
-			emit("stack", sp-2, " = bit_band(stack", sp-2, ", stack", sp-1, ")")
-			sp = sp - 1
-		end,
-
-		[0x80] = function() -- ior
-			emit("stack", sp-2, " = bit_bor(stack", sp-2, ", stack", sp-1, ")")
-			sp = sp - 1
-		end,
-
-		[0x84] = function() -- iinc
-			local var = uw()
-			local i = sw()
-			emit("local", var, " = tonumber(cast('int32_t', local", var, " + ", i, "))")
-		end,
-
-		[0x85] = function() -- i2l
-			emit("stack", sp-1, " = cast('int64_t', stack", sp-1, ")")
-			sp = sp + 1
+			permutefacts(sp, {2, 3, 0, 1, 2, 3})
+			emitnonl("do local v4, v3, v2, v1 = stack", sp, ", stack", sp+1, ", stack", sp+2, ", stack", sp+3)
+			emitnonl(" stack", sp, "=v2")
+			emitnonl(" stack", sp+1, "=v1")
+			emitnonl(" stack", sp+2, "=v4")
+			emitnonl(" stack", sp+3, "=v3")
+			emitnonl(" stack", sp+4, "=v2")
+			emitnonl(" stack", sp+5, "=v1")
+			emit(" end")
+			sp = sp + 6
 		end,
 
-		[0x86] = function() -- i2f
-			emit("stack", sp-1, " = tonumber(stack", sp-1, ")")
+		[0x5f] = function() -- swap
+			sp = sp - 2
+			permutefacts(sp, {1, 0})
+			emit("stack", sp, ", stack", sp+1, " = stack", sp+1, ", stack", sp)
+			sp = sp + 2
 		end,
 
-		[0x87] = function() -- i2d
-			emit("stack", sp-1, " = tonumber(stack", sp-1, ")")
-			sp = sp + 1
-		end,
+		[0x60] = expression_op(1, {1, 1}, "tonumber(cast('int32_t', cast('int32_t', %s) + cast('int32_t', %s)))"), -- iadd
+		[0x61] = expression_op(2, {2, 2}, "(%s + %s)"), -- ladd
+		[0x62] = expression_op(1, {1, 1}, "(%s + %s)"), -- fadd
+		[0x63] = expression_op(2, {2, 2}, "(%s + %s)"), -- dadd
+		[0x64] = expression_op(1, {1, 1}, "tonumber(cast('int32_t', %s - %s))"), -- isub
+		[0x65] = expression_op(2, {2, 2}, "(%s - %s)"), -- lsub
+		[0x66] = expression_op(1, {1, 1}, "(%s - %s)"), -- fsub
+		[0x68] = expression_op(1, {1, 1}, "tonumber(cast('int32_t', cast('int32_t', %s) * cast('int32_t', %s)))"), -- imul
+		[0x69] = expression_op(2, {2, 2}, "(%s * %s)"), -- lmul
+		[0x6a] = expression_op(1, {1, 1}, "(%s * %s)"), -- fmul
 
-		[0x88] = function() -- l2i
-			emit("stack", sp-2, " = tonumber(cast('int32_t', stack", sp-2, "))")
+		[0x6c] = function() -- idiv
+			divisioncheck("stack"..(sp-1))
+			emit("stack", sp-2, " = idiv(stack", sp-2, ", stack", sp-1, ")")
 			sp = sp - 1
 		end,
 
-		[0x8a] = function() -- l2d
-			emit("stack", sp-2, " = tonumber(stack", sp-2, ")")
-		end,
+		[0x6b] = expression_op(2, {2, 2}, "(%s * %s)"), -- dmul
 
-		[0x8b] = function() -- f2i
-			emit("stack", sp-1, " = tonumber(cast('int32_t', stack", sp-1, "))")
+		[0x6d] = function() -- ldiv
+			divisioncheck("stack"..(sp-2))
+			emit("stack", sp-4, " = stack", sp-4, " / stack", sp-2)
+			sp = sp - 2
 		end,
 
-		[0x8d] = function() -- f2d
-			emit("stack", sp-1, " = cast('double', stack", sp-1, ")")
-			sp = sp + 1
-		end,
+		[0x6e] = expression_op(1, {1, 1}, "(%s / %s)"), -- fdiv
+		[0x6f] = expression_op(2, {2, 2}, "(%s / %s)"), -- ddiv
+		[0x67] = expression_op(2, {2, 2}, "(%s - %s)"), -- dsub
 
-		[0x91] = function() -- i2b
-			emit("stack", sp-1, " = tonumber(cast('int8_t', stack", sp-1, "))")
+		[0x70] = function() -- irem
+			divisioncheck("stack"..(sp-1))
+			emit("stack", sp-2, " = irem(stack", sp-2, ", stack", sp-1, ")")
+			sp = sp - 1
 		end,
 
-		[0x92] = function() -- i2c
-			emit("stack", sp-1, " = tonumber(cast('uint16_t', stack", sp-1, "))")
+		[0x71] = function() -- lrem
+			sp = sp - 4
+			divisioncheck("stack"..(sp+2))
+			emit("stack", sp, " = lrem(stack", sp, ", stack", sp+2, ")")
+			sp = sp + 2
 		end,
 
-		[0x93] = function() -- i2s
-			emit("stack", sp-1, " = tonumber(cast('int16_t', stack", sp-1, "))")
-		end,
+		[0x72] = expression_op(1, {1, 1}, "tonumber(cast('float', fmod(%s, %s)))"), -- frem
+		[0x73] = expression_op(2, {2, 2}, "fmod(%s, %s)"), -- drem
+		[0x74] = expression_op(1, {1}, "tonumber(cast('int32_t', - %s))"), -- ineg
+		[0x75] = expression_op(2, {2}, "(- %s)"), -- lneg
+		[0x76] = expression_op(1, {1}, "(- %s)"), -- fneg
+		[0x77] = expression_op(2, {2}, "(- %s)"), -- dneg
+		[0x78] = expression_op(1, {1, 1}, "bit_lshift(%s, %s)"), -- ishl
+		[0x79] = expression_op(2, {2, 1}, "lshl(%s, %s)"), -- lshl
+		[0x7a] = expression_op(1, {1, 1}, "bit_arshift(%s, %s)"), -- ishr
+		[0x7b] = expression_op(2, {2, 1}, "lshr(%s, %s)"), -- lshr
+		[0x7c] = expression_op(1, {1, 1}, "bit_rshift(%s, %s)"), -- iushr
+		[0x7d] = expression_op(2, {2, 1}, "lushr(%s, %s)"), -- lushr
+		[0x7e] = expression_op(1, {1, 1}, "bit_band(%s, %s)"), -- iand
+		[0x7f] = expression_op(2, {2, 2}, "land(%s, %s)"), -- land
+		[0x80] = expression_op(1, {1, 1}, "bit_bor(%s, %s)"), -- ior
+		[0x81] = expression_op(2, {2, 2}, "lor(%s, %s)"), -- lor
+		[0x82] = expression_op(1, {1, 1}, "bit_bxor(%s, %s)"), -- ixor
+		[0x83] = expression_op(2, {2, 2}, "lxor(%s, %s)"), -- lxor
+
+		[0x84] = function() -- iinc
+			local var = uw()
+			local i = sw()
+			invalidate(localvar(var))
+			emit(localvar(var), " = tonumber(cast('int32_t', ", localvar(var), " + ", i, "))")
+		end,
+
+		[0x85] = expression_op(2, {1}, "cast('int64_t', %s)"), -- i2l
+		[0x86] = expression_op(1, {1}, "tonumber(cast('float', %s))"), -- i2f
+		[0x87] = expression_op(2, {1}, "%s"), -- i2d
+		[0x88] = expression_op(1, {2}, "tonumber(cast('int32_t', %s))"), -- l2i
+		[0x89] = expression_op(1, {2}, "tonumber(cast('float', %s))"), -- l2f
+		[0x8a] = expression_op(2, {2}, "tonumber(%s)"), -- l2d
+		[0x8b] = expression_op(1, {1}, "d2i(%s)"), -- f2i
+		[0x8c] = expression_op(2, {1}, "d2l(%s)"), -- f2l
+		[0x8d] = expression_op(2, {1}, "%s"), -- f2d
+		[0x8e] = expression_op(1, {2}, "d2i(%s)"), -- d2i
+		[0x8f] = expression_op(2, {2}, "d2l(%s)"), -- d2l
+		[0x90] = expression_op(1, {2}, "tonumber(cast('float', %s))"), -- d2f
+		[0x91] = expression_op(1, {1}, "tonumber(cast('int8_t', %s))"), -- i2b
+		[0x92] = expression_op(1, {1}, "tonumber(cast('uint16_t', %s))"), -- i2c
+		[0x93] = expression_op(1, {1}, "tonumber(cast('int16_t', %s))"), -- i2s
 
 		[0x94] = function() -- lcmp
 			emitnonl("if (stack", sp-4, " == stack", sp-2, ") then stack", sp-4, " = 0 elseif ")
@@ -760,47 +2204,12 @@ local function compile_method(climp, analysis, mimpl)
 			sp = sp - 3
 		end,
 
-		[0x99] = function() -- ifeq
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " == 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0x9a] = function() -- ifeq
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " ~= 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0x9b] = function() -- iflt
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " < 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0x9c] = function() -- ifge
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " >= 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0x9d] = function() -- ifgt
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " > 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0x9e] = function() -- ifle
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " <= 0) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
+		[0x99] = if_op("==", "0"), -- ifeq
+		[0x9a] = if_op("~=", "0"), -- ifne
+		[0x9b] = if_op("<", "0"), -- iflt
+		[0x9c] = if_op(">=", "0"), -- ifge
+		[0x9d] = if_op(">", "0"), -- ifgt
+		[0x9e] = if_op("<=", "0"), -- ifle
 
 		[0x9f] = ifcmp_op("=="), -- if_icmpeq
 		[0xa0] = ifcmp_op("~="), -- if_icmpne
@@ -818,6 +2227,9 @@ local function compile_method(climp, analysis, mimpl)
 			sp = nil
 		end,
 
+		[0xaa] = switch_op(false), -- tableswitch
+		[0xab] = switch_op(true), -- lookupswitch
+
 		[0xac] = function() -- ireturn
 			sp = sp - 1
 			emit("do return stack", sp, " end")
@@ -856,159 +2268,173 @@ local function compile_method(climp, analysis, mimpl)
 		[0xb2] = function() -- getstatic
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = climp:ClimpLoader():LoadClimp(f.Class)
+			local statics, slot = staticref(i, f)
 
-			emit("stack", sp, " = ", constant(c), ".", field_lvalue(c, f))
+			setnonnull("stack"..sp, false)
+			emit("stack", sp, " = ", statics, "[", slot, "]")
 			sp = sp + f.Size
 		end,
 
 		[0xb3] = function() -- putstatic
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = climp:ClimpLoader():LoadClimp(f.Class)
+			local statics, slot = staticref(i, f)
 
 			sp = sp - f.Size
-			emit(constant(c), ".", field_lvalue(c, f), " = stack", sp)
+			emit(statics, "[", slot, "] = ", field_store(f, "stack"..sp))
 		end,
 
 		[0xb4] = function() -- getfield
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = climp:ClimpLoader():LoadClimp(f.Class)
+			local slot = fieldref(i, f)
 
 			sp = sp - 1
 			nullcheck("stack"..sp)
-			emit("stack", sp, " = stack", sp, ".", field_lvalue(c, f))
+			emit("stack", sp, " = stack", sp, "[", slot, "]")
+			setnonnull("stack"..sp, false)
 			sp = sp + f.Size
 		end,
 
 		[0xb5] = function() -- putfield
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = climp:ClimpLoader():LoadClimp(f.Class)
+			local slot = fieldref(i, f)
 
 			sp = sp - f.Size - 1
 			nullcheck("stack"..sp)
-			emit("stack", sp, ".", field_lvalue(c, f), " = stack", sp+1)
+			emit("stack", sp, "[", slot, "] = ",
+				field_store(f, "stack"..(sp+1)))
 		end,
 
 		[0xb6] = function() -- invokevirtual
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f.Class))
-
 			local self = "stack"..(sp-1-f.Size)
 			nullcheck(self)
 
-			if (f.OutParams > 0) then
-				emitnonl(self)
-			else
-				emitnonl("_")
+			local c = loadedclimp(f.Class)
+			if not c then
+				virtualcall(f, self, "c.VTable["..lazyref("method", i)..".Slot]")
+				return
+			end
+
+			local slot = c:VirtualMethodSlot(f.Name..f.Descriptor)
+			Utils.Assert(slot, "no vtable slot for ", f.Class, "::", f.Name, f.Descriptor)
+
+			-- If the call can only reach one method, call it directly (or
+			-- inline it). Unless the method can't be overridden, this is
+			-- speculative: the direct call is guarded by an assumption which
+			-- is invalidated if a class overriding the method is loaded, in
+			-- which case we fall back to the normal virtual call.
+
+			local dc, dmimpl = c:FindMethodDeclaration(f.Name..f.Descriptor)
+			local a
+			if dmimpl and not string_find(dmimpl.AccessFlags, " abstract ") then
+				if is_statically_bound(c, dmimpl) then
+					directcall(c, dc, f, self)
+					return
+				end
+
+				a = c:AssumeSingleImplementation(f.Name..f.Descriptor,
+					thisclimp, thismethod)
+				if a then
+					local oldsp = sp
+					local oldnonnull, oldaliases = savefacts()
+					emit("if ", constant(a, {"assumption", c:ThisClass(),
+						f.Name..f.Descriptor}), ".Valid then")
+					directcall(c, dc, f, self)
+					emit("else")
+					sp = oldsp
+					nonnull, aliases = oldnonnull, oldaliases
+				end
 			end
 
-			emitnonl(", e = ", self, ".Methods['", f.Name, f.Descriptor, "']")
-			methodcall(f, self)
-			checkexception()
-			sp = sp - 1 + f.OutParams
+			virtualcall(f, self, "c.VTable["..slot.."]")
+			if a then
+				emit("end")
+			end
 		end,
 
 		[0xb7] = function() -- invokespecial
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f.Class))
-
 			local self = "stack"..(sp-1-f.Size)
-			if (f.OutParams > 0) then
-				emitnonl(self)
+			local c = loadedclimp(f.Class)
+			if c then
+				directcall(c, c, f, self)
 			else
-				emitnonl("_")
+				methodcall(binding(lazyref("method", i)..".Climp",
+					f.Name..f.Descriptor), f, self)
 			end
-
-			emitnonl(", e = ", c, ".Methods['", f.Name, f.Descriptor, "']")
-			methodcall(f, self)
-			checkexception()
-			sp = sp - 1 + f.OutParams
 		end,
 
 		[0xb8] = function() -- invokestatic
 			local i = u2()
 			local f = analysis.RefConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f.Class))
-
-			if (f.OutParams > 0) then
-				emitnonl("stack", sp-f.Size)
+			local c = loadedclimp(f.Class, true)
+			if c then
+				initguard("staticmethod", i)
+				directcall(c, c, f, nil)
 			else
-				emitnonl("_")
+				methodcall(binding(lazyref("staticmethod", i)..".Climp",
+					f.Name..f.Descriptor), f, nil)
 			end
-
-			emitnonl(", e = ", c, ".Methods['", f.Name, f.Descriptor, "']")
-			methodcall(f)
-			checkexception()
-			sp = sp + f.OutParams
 		end,
 
 		[0xb9] = function() -- invokeinterface
 			local i = u2()
 			u2() -- read and ingore two bytes
 			local f = analysis.RefConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f.Class))
-
 			local self = "stack"..(sp-1-f.Size)
 			nullcheck(self)
 
-			if (f.OutParams > 0) then
-				emitnonl(self)
+			local c = loadedclimp(f.Class)
+			if c then
+				local slot = c:VirtualMethodSlot(f.Name..f.Descriptor)
+				Utils.Assert(slot, "no itable slot for ", f.Class, "::", f.Name, f.Descriptor)
+				virtualcall(f, self, "c.ITables["..constant(c, {"climp", f.Class}).."]["..slot.."]")
 			else
-				emitnonl("_")
+				local r = lazyref("method", i)
+				virtualcall(f, self, "c.ITables["..r..".Climp]["..r..".Slot]")
 			end
-
-			emitnonl(", e = ", self, ".Methods['", f.Name, f.Descriptor, "']")
-			methodcall(f, self)
-			checkexception()
-			sp = sp - 1 + f.OutParams
 		end,
 
 		[0xbb] = function() -- new
 			local i = u2()
-			local f = analysis.ClassConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f))
+			local c = classref(i, "new")
 
-			emit("stack", sp, ", e = runtime.New(", c, ")")
-			checkexception()
+			setnonnull("stack"..sp, true)
+			emit("stack", sp, " = runtime.New(", c, ")")
 			sp = sp + 1
 		end,
 
 		[0xbc] = function() -- newarray
 			local i = u1()
-			emit("stack", sp-1, ", e = runtime.NewArray(", i, ", stack", sp-1, ")")
-			checkexception()
+			setnonnull("stack"..(sp-1), true)
+			emit("stack", sp-1, " = runtime.NewArray(", i, ", stack", sp-1, ")")
 		end,
 
 		[0xbd] = function() -- anewarray
 			local i = u2()
-			local f = analysis.ClassConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f))
-			emit("stack", sp-1, ", e = runtime.NewAArray(", c, ", stack", sp-1, ")")
-			checkexception()
+			local c = classref(i, "class")
+			setnonnull("stack"..(sp-1), true)
+			emit("stack", sp-1, " = runtime.NewAArray(", c, ", stack", sp-1, ")")
 		end,
 
 		[0xbe] = function() -- arraylength
 			nullcheck("stack"..(sp-1))
-			emit("stack", (sp-1), ", e = stack", (sp-1), ":Length()")
-			checkexception()
+			emit("stack", (sp-1), " = stack", (sp-1), ".length")
 		end,
 
 		[0xbf] = function() -- athrow
-			local o = "stack"..(sp-1)
-			emit("e = ", o)
-			checkexception()
+			throw("stack"..(sp-1))
 			sp = nil
 		end,
 
 		[0xc0] = function() -- checkcast
 			local i = u2()
-			local f = analysis.ClassConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f))
+			local c = classref(i, "class")
 
 			local o = "stack"..(sp-1)
 			emit("if not runtime.InstanceOf(", o, ", ", c, ") then error('bad cast') end")
@@ -1016,11 +2442,10 @@ local function compile_method(climp, analysis, mimpl)
 
 		[0xc1] = function() -- instanceof
 			local i = u2()
-			local f = analysis.ClassConstants[i]
-			local c = constant(climp:ClimpLoader():LoadClimp(f))
+			local c = classref(i, "class")
 
 			local o = "stack"..(sp-1)
-			emit(o, " = runtime.InstanceOf(", o, ", ", c, ")")
+			emit(o, " = ((", o, " ~= nil) and runtime.InstanceOf(", o, ", ", c, ")) and 1 or 0")
 		end,
 
 		[0xc2] = function() -- monitorenter
@@ -1038,51 +2463,114 @@ local function compile_method(climp, analysis, mimpl)
 			wide = true
 		end,
 
-		[0xc6] = function() -- ifnull
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " == nil) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
-
-		[0xc7] = function() -- ifnonnull
-			local delta = s2() - 3
-			sp = sp - 1
-			emit("if (stack", sp, " ~= nil) then goto pc_", pos+delta, " end")
-			addentrypoint(pos+delta, sp)
-		end,
+		[0xc6] = if_op("==", "nil"), -- ifnull
+		[0xc7] = if_op("~=", "nil"), -- ifnonnull
 	}
 
 	-- Add the main code entrypoint.
 
-	addentrypoint(0, 0)
-	emit("goto pc_0")
+	addentrypoint(osrpc or 0, 0)
+	emit("goto pc_", osrpc or 0)
 
-	-- Add the exception handler.
+	-- Add the exception handler, if this method has any; everything else
+	-- just lets exceptions propagate. Lua errors which aren't Java
+	-- exceptions are always passed on.
 	
-	emit("::exceptionhandler::")
-	emit("stack0 = e")
-	for _, t in ipairs(mimpl.Code.ExceptionTable) do
+	if (#exceptiontable > 0) then
+		emit("::exceptionhandler::")
+		emit("if (type(e) ~= 'table') then error(e, 0) end")
+		emit("stack0 = e")
+	end
+	for _, t in ipairs(exceptiontable) do
 		emitnonl("if (epc>=", t.start_pc, ") and (epc<", t.end_pc, ") ")
 		if (t.catch_type ~= 0) then
-			local f = analysis.ClassConstants[t.catch_type]
-			local c = constant(climp:ClimpLoader():LoadClimp(f))
+			local c = classref(t.catch_type, "class")
 
 			emitnonl("and runtime.InstanceOf(e, ", c, ") ")
 		end
 		emit("then goto pc_", t.handler_pc, " end")
 		addentrypoint(t.handler_pc, 1)
 	end
-	emit("do return nil, e end")
+	if (#exceptiontable > 0) then
+		emit("error(e)")
+	end
 
-	-- Add the null pointer handler.
-	
-	if Options.CheckNullPointers then
-		emit("::nullpointer::")
-		emit("e = runtime.NullPointerException()")
-		emit("goto exceptionhandler")
+	-- Finishes off the Lua function being generated, adding the handlers
+	-- for any runtime exceptions its checks need and declaring its stack.
+	-- The method itself is the first of these functions, followed by any
+	-- parts it has been split into.
+
+	local functions = {}
+	local function runtimehandler(label, constructor)
+		emit("::", label, "::")
+		if (#exceptiontable > 0) then
+			emit("e = runtime.", constructor, "()")
+			emit("goto exceptionhandler")
+		else
+			emit("error(runtime.", constructor, "())")
+		end
+	end
+
+	local stackparams = 0 -- stack slots passed into the current function
+
+	local function finishfunction()
+		if nullchecked then
+			runtimehandler("nullpointer", "NullPointerException")
+		end
+		if boundschecked then
+			runtimehandler("outofbounds", "ArrayIndexOutOfBoundsException")
+		end
+		if divisionchecked then
+			runtimehandler("divisionbyzero", "ArithmeticException")
+		end
+		nullchecked, boundschecked, divisionchecked = false, false, false
+		emit("end")
+
+		-- Only declare the stack variables which are actually used; with
+		-- pending expressions, many never are.
+
+		local used = {}
+		for n in string_gmatch(table_concat(output), "%f[%w_]stack(%d+)%f[^%w_]") do
+			used[tonumber(n)] = true
+		end
+
+		local names = {}
+		for i = stackparams, maxstack-1 do
+			if used[i] then
+				names[#names+1] = "stack"..i
+			end
+		end
+		if (#names > 0) then
+			output[stackdeclaration] = "local "..table_concat(names, ", ")
+		end
+
+		functions[#functions+1] = table_concat(output)
+	end
+
+	-- Ends the current function with a tail call to a new one, which the
+	-- following code goes into. This is only done where no branches cross,
+	-- and all locals are in the frame; whatever is on the stack is passed
+	-- across as parameters.
+
+	local function splitfunction()
+		flush()
+		local args = {"frame"}
+		for i = 0, sp-1 do
+			args[#args+1] = "stack"..i
+		end
+		args = table_concat(args, ", ")
+
+		emit("do return chunk", #functions+1, "(", args, ") end")
+		finishfunction()
+		output = {}
+		stackparams = sp
+		emit("function(", args, ")")
+		stackdeclaration = #output + 1
+		emit("")
+		emit("local e, epc, ok")
 	end
 
+	local chunkstart = 0
 	while true do
 		-- Fetch the next entrypoint.
 
@@ -1095,18 +2583,43 @@ local function compile_method(climp, analysis, mimpl)
 		if not seenopcodes[pos] then
 			emit("-- new entrypoint")
 			sp = stacksize[pos]
+			pending = {}
+			resetfacts()
+			local lastpc = nil
 
 			while (sp ~= nil) do
 				if seenopcodes[pos] then
 					-- Whups! This opcode has already been compiled. Rather
 					-- than compile it again, jump to the original version.
+					flush()
 					emit("goto pc_", pos)
 					addentrypoint(pos, sp)
 					break
 				end
 
+				local chunksize = pos - chunkstart
+				if splitpoints and splitpoints[pos] and (chunksize >= MAX_CHUNK_SIZE) and
+						((sp <= 1) or ((sp <= MAX_SPLIT_STACK) and
+							(chunksize >= MAX_CHUNK_SIZE + MAX_SPLIT_SLACK))) then
+					local nextentrypoint = Utils.FindSmallestKey(entrypoints)
+					if not nextentrypoint or (nextentrypoint > pos) then
+						splitfunction()
+						chunkstart = pos
+						resetfacts()
+						lastpc = nil
+					end
+				end
+
 				seenopcodes[pos] = true
 				checkstack(pos)
+				if leaders[pos] then
+					flush()
+					resetfacts()
+				else
+					prevpc[pos] = lastpc
+				end
+				currentpc = pos
+				lastpc = pos
 				output[#output+1] = "::pc_"..pos..":: "
 
 				-- Ensure that 'wide' is honoured
@@ -1124,15 +2637,16 @@ local function compile_method(climp, analysis, mimpl)
 				if not opcodec then
 					Utils.Throw("unimplemented opcode 0x"..string.format("%02x", opcode))
 				end
+				if not expression_opcodes[opcode] then
+					flush()
+				end
 				emitnonl("--[[ sp=", sp, " line=", lineno, " --]] ")
 				opcodec()
 			end
 		end
 	end
 
-	-- Emit function epilogue.
-	
-	emit("end")
+	finishfunction()
 
 	-- Wrap the whole thing in the constructor function used to pass in the
 	-- constant pool.
@@ -1141,24 +2655,53 @@ local function compile_method(climp, analysis, mimpl)
 		"local ffi = require('ffi') ",
 		"local runtime = require('Runtime') ",
 		"local tonumber = tonumber ",
+		"local pcall, error = pcall, error ",
 		"local cast = ffi.cast ",
-		"local bit_lshift, bit_arshift, bit_band, bit_bor = bit.lshift, bit.arshift, bit.band, bit.bor ",
-		"return function("
+		"local bit_lshift, bit_rshift, bit_arshift = bit.lshift, bit.rshift, bit.arshift ",
+		"local bit_band, bit_bor, bit_bxor = bit.band, bit.bor, bit.bxor ",
+		"local fmod = math.fmod ",
+		"local arithmetic = require('Arithmetic') ",
+		"local idiv, irem, d2i, d2l = arithmetic.IDiv, arithmetic.IRem, arithmetic.D2I, arithmetic.D2L ",
+		"local lshl, lshr, lushr = arithmetic.LShl, arithmetic.LShr, arithmetic.LUShr ",
+		"local land, lor, lxor, lrem = arithmetic.LAnd, arithmetic.LOr, arithmetic.LXor, arithmetic.LRem ",
+		"local ic = runtime.NewInlineCache() ",
+		"return function(constants)\n"
 	}
 
-	do
-		local first = true
-		for k, _ in ipairs(constants) do
-			if not first then
-				wrapper[#wrapper+1] = ", "
-			end
-			first = false
-			wrapper[#wrapper+1] = "constant"..k
+	for k = 1, math.min(#constants, MAX_CONSTANT_UPVALUES) do
+		wrapper[#wrapper+1] = "local constant"..k.." = constants["..k.."]\n"
+	end
+
+	-- Declare the bound call targets, and their trampolines.
+
+	if (#bindings > MAX_BOUND_TARGETS) then
+		wrapper[#wrapper+1] = "local targets = {}\n"
+	end
+	for _, b in ipairs(bindings) do
+		local c, name, n = b[1], b[2], b[3]
+		if not string_find(n, "%[") then
+			wrapper[#wrapper+1] = "local "..n.."\n"
+		end
+		wrapper[#wrapper+1] = n.." = function(...) "..n.." = "..c..
+			":FindMethod('"..name.."') return "..n.."(...) end\n"
+	end
+
+	-- Declare the parts of a split method, each of which tail calls the
+	-- next.
+
+	if (#functions > 1) then
+		local names = {}
+		for i = 2, #functions do
+			names[#names+1] = "chunk"..(i-1)
+		end
+		wrapper[#wrapper+1] = "local "..table_concat(names, ", ").."\n"
+		for i = 2, #functions do
+			wrapper[#wrapper+1] = "chunk"..(i-1).." = "..functions[i].."\n"
 		end
 	end
 
-	wrapper[#wrapper+1] = ")\nreturn "
-	wrapper[#wrapper+1] = table_concat(output)
+	wrapper[#wrapper+1] = "return "
+	wrapper[#wrapper+1] = functions[1]
 	wrapper[#wrapper+1] = "end"
 
 	-- Compile it.
@@ -1168,13 +2711,19 @@ local function compile_method(climp, analysis, mimpl)
 	end
 
 	local chunk, e = load(table_concat(wrapper),
-		analysis.ThisClass.."::"..mimpl.Name..mimpl.Descriptor)
+		analysis.ThisClass.."::"..mimpl.Name..mimpl.Descriptor..
+			(osrpc and ("@"..osrpc) or ""))
 	Utils.Check(e, "compilation failed")
 
+	if classhash then
+		store_cached_method(climp, classhash, mimpl.Name..mimpl.Descriptor,
+			dependencies, recipes, #constants, table_concat(wrapper))
+	end
+
 	-- Now actually call the constructor, with the constants, to produce the
 	-- runnable method.
 	
-	return chunk()(unpack(constants))
+	return chunk()(constants)
 end
 
 -- This function takes a reference to a native method, and returns the
@@ -1187,20 +2736,110 @@ local function compile_native_method(climp, analysis, mimpl)
 	return f
 end
 
-local function compile_nonstatic_method(climp, analysis, mimpl)
-	if string_find(mimpl.AccessFlags, " native ") then
-		return compile_native_method(climp, analysis, mimpl)
-	else
-		return compile_method(climp, analysis, mimpl)
+-- Returns a method which starts off interpreted, and is translated once it
+-- becomes hot. Its profile counts both invocations (here) and back-edges
+-- (in the interpreter); when a loop gets hot, the interpreter asks for an
+-- on-stack replacement so that it can finish the invocation in translated
+-- code.
+
+local function tiered_method(climp, analysis, mimpl)
+	local n = mimpl.Name..mimpl.Descriptor
+	local compiled = nil
+	local osr = {}
+	local profile = {Count = 0}
+
+	profile.OnStackReplacement = function(pc)
+		local m = osr[pc]
+		if (m == nil) then
+			m = compile_method(climp, analysis, mimpl, pc) or false
+			osr[pc] = m
+		end
+		return m
+	end
+
+	local stub
+	stub = function(...)
+		if compiled then
+			return compiled(...)
+		end
+
+		local count = profile.Count + 1
+		profile.Count = count
+		if (count >= Options.HotThreshold) then
+			compiled = compile_method(climp, analysis, mimpl)
+			climp:ReplaceMethod(n, stub, compiled)
+			return compiled(...)
+		end
+		return Interpreter.Interpret(climp, mimpl, profile, ...)
 	end
+	return stub
 end
 
-local function compile_static_method(climp, analysis, mimpl)
-	if string_find(mimpl.AccessFlags, " native ") then
+-- Produces the callable implementation of a method, static or not. Static
+-- and instance lookups share the per-climp cache of these. Methods start
+-- off in the interpreter, unless there's already a translation in the code
+-- cache. A native method registered for a method which has Java code is an
+-- intrinsic, and replaces the Java code.
+
+local function compile_any_method(climp, analysis, mimpl)
+	if string_find(mimpl.AccessFlags, " native ") or
+			Runtime.FindNativeMethod(analysis.ThisClass, mimpl.Name..mimpl.Descriptor) then
 		return compile_native_method(climp, analysis, mimpl)
-	else
-		return compile_method(climp, analysis, mimpl)
 	end
+
+	if Options.Tiered and mimpl.Code then
+		local m = CodeCache.Enabled() and load_cached_method(climp,
+			climp:ClimpLoader():ClassHash(analysis.ThisClass),
+			mimpl.Name..mimpl.Descriptor)
+		return m or tiered_method(climp, analysis, mimpl)
+	end
+	return compile_method(climp, analysis, mimpl)
+end
+
+-- Returns a class' static or instance fields, in a stable order.
+
+local function sorted_fields(analysis, static)
+	local fields = {}
+	for _, f in pairs(analysis.Fields) do
+		if (not not string_find(f.AccessFlags, " static ")) == static then
+			fields[#fields+1] = f
+		end
+	end
+	table_sort(fields,
+		function(a, b)
+			return a.Name < b.Name
+		end
+	)
+	return fields
+end
+
+-- Creates the function which allocates instances of a climp. It's a single
+-- table constructor, with the climp and the field defaults baked in, so that
+-- LuaJIT can allocate (and sink) objects using a template table.
+
+local function make_allocator(climp, defaults)
+	local s = {
+		"local climp = ... ",
+		"return function(hash) return { Climp = climp, Hash = hash"
+	}
+	for _, d in ipairs(defaults) do
+		s[#s+1] = ", "
+		s[#s+1] = d
+	end
+	s[#s+1] = " } end"
+
+	local chunk, e = load(table_concat(s), climp:ThisClass().."::<alloc>")
+	Utils.Check(e, "allocator compilation failed")
+	return chunk(climp)
+end
+
+-- Returns true if the method is dispatched virtually (and so gets a vtable
+-- slot).
+
+local function is_virtual(mimpl)
+	return not string_find(mimpl.AccessFlags, " static ") and
+		not string_find(mimpl.AccessFlags, " private ") and
+		(string_byte(mimpl.Name, 1) ~= 60) -- '<'
 end
 
 local function returnszero()
@@ -1222,64 +2861,194 @@ local constantparser = {
 
 return function(climploader)
 	local analysis
-	local instancevartype
 	local instancemethodcache = {}
 	local superclimp
 	local constants = {}
 	local staticmethods = {}
 
 	local c
+	local statics = {}
+	local staticslots = {}
+	local instanceslots = {}
+	local fielddefaultsforslot = {}
+	local interfaces = {}
+	local supertypes = {}
+	local vslots = {}
+	local vnames = {}
+	local subclimps = {}
+	local overridden = {}
+	local assumptions = {}
+
+	-- The vtable maps slot numbers to method implementations; it's filled in
+	-- lazily as slots are used.
+
+	local vtable = {}
+	setmetatable(vtable,
+		{
+			__index = function(self, slot)
+				local m = c:FindMethod(vnames[slot])
+				rawset(vtable, slot, m)
+				return m
+			end,
+		}
+	)
+
+	-- The itables, one per interface, map the interface's slot numbers to
+	-- this class' implementations. Both the tables and their contents are
+	-- created lazily.
+
+	local itables = {}
+	setmetatable(itables,
+		{
+			__index = function(self, iface)
+				local names = iface:VirtualMethodNames()
+				local itable = {}
+				setmetatable(itable,
+					{
+						__index = function(self, slot)
+							local m = c:FindMethod(names[slot])
+							rawset(itable, slot, m)
+							return m
+						end,
+					}
+				)
+				rawset(itables, iface, itable)
+				return itable
+			end,
+		}
+	)
+
 	c = {
 		Init = function(self, a)
 			analysis = a
 			self.Analysis = a
 
-			-- Initialise static fields.
+			-- Lay out and initialise static fields, which live in slots of
+			-- the Statics table.
 
-			local s = {}
-			s[#s+1] = "struct {"
-			for _, f in pairs(analysis.Fields) do
-				if string_find(f.AccessFlags, " static ") then
-					local bi = boxinfo[f.Descriptor]
-					if bi then
-						s[#s+1] = bi..' '..field_name(self, f)..';'
-					end
+			local slot = 0
+			for _, f in ipairs(sorted_fields(analysis, true)) do
+				slot = slot + 1
+				staticslots[field_name(self, f)] = slot
+				local d = fielddefaults[f.Descriptor]
+				if d then
+					statics[slot] = (d == "0LL") and 0LL or 0
 				end
 			end
-			s[#s+1] = "}"
-			s = table_concat(s, "\n")
-			self.Fields = ffi.new(s)
-			self.OFields = {}
 
-			-- Load the superclass.
+			-- Load the superclass and any interfaces.
 
 			if analysis.SuperClass then
 				superclimp = climploader:LoadClimp(analysis.SuperClass)
 			end
 
-			-- Remember the types of instance fields.
+			for _, n in ipairs(analysis.Interfaces) do
+				interfaces[#interfaces+1] = climploader:LoadClimp(n)
+			end
 
-			s = {}
-			s[#s+1] = "struct {"
-			self:AddInstanceFieldsToStruct(s)
-			s[#s+1] = "}"
-			s = table_concat(s, "\n")
-			instancevartype = ffi.typeof(s)
-		end,
+			-- Compute the set of types that instances of this class can be
+			-- cast to.
+
+			supertypes[self] = true
+			if superclimp then
+				for t in pairs(superclimp.Supertypes) do
+					supertypes[t] = true
+				end
+			end
+			for _, i in ipairs(interfaces) do
+				for t in pairs(i.Supertypes) do
+					supertypes[t] = true
+				end
+			end
 
-		AddInstanceFieldsToStruct = function(self, s)
-			for _, f in pairs(analysis.Fields) do
-				if not string_find(f.AccessFlags, " static ") then
-					local bi = boxinfo[f.Descriptor]
-					if bi then
-						s[#s+1] = bi..' '..field_name(self, f)..';'
+			-- Tell all our ancestors which of their methods we override, for
+			-- class hierarchy analysis.
+
+			if superclimp then
+				superclimp:AddSubClimp(self)
+				for n, mimpl in pairs(analysis.Methods) do
+					if is_virtual(mimpl) then
+						local s = superclimp
+						while s do
+							s:MarkOverridden(n)
+							s = s:SuperClimp()
+						end
 					end
 				end
 			end
 
+			-- Lay out the vtable. Slots are inherited from the superclass;
+			-- new virtual methods, followed by any interface methods which
+			-- this class doesn't declare itself, are appended in a stable
+			-- order. (For interfaces, the same layout is used to index
+			-- itables.)
+
+			local function addslot(n)
+				if not vslots[n] then
+					vnames[#vnames+1] = n
+					vslots[n] = #vnames
+				end
+			end
+
 			if superclimp then
-				superclimp:AddInstanceFieldsToStruct(s)
+				for _, n in ipairs(superclimp:VirtualMethodNames()) do
+					addslot(n)
+				end
+			end
+
+			local names = {}
+			for n, mimpl in pairs(analysis.Methods) do
+				if is_virtual(mimpl) then
+					names[#names+1] = n
+				end
+			end
+			table_sort(names)
+			for _, n in ipairs(names) do
+				addslot(n)
+			end
+
+			for _, i in ipairs(interfaces) do
+				for _, n in ipairs(i:VirtualMethodNames()) do
+					addslot(n)
+				end
+			end
+
+			-- Lay out instance fields. Objects are single Lua tables with
+			-- each field in an integer slot; slots are inherited from the
+			-- superclass and this class' own fields are appended.
+
+			if superclimp then
+				for slot, d in ipairs(superclimp:InstanceFieldDefaults()) do
+					fielddefaultsforslot[slot] = d
+				end
+				for k, slot in pairs(superclimp:InstanceFieldSlots()) do
+					instanceslots[k] = slot
+				end
+			end
+
+			for _, f in ipairs(sorted_fields(analysis, false)) do
+				local slot = #fielddefaultsforslot + 1
+				fielddefaultsforslot[slot] = fielddefaults[f.Descriptor] or "nil"
+				instanceslots[field_name(self, f)] = slot
 			end
+
+			self.NewInstance = make_allocator(self, fielddefaultsforslot)
+		end,
+
+		InstanceFieldSlots = function(self)
+			return instanceslots
+		end,
+
+		InstanceFieldDefaults = function(self)
+			return fielddefaultsforslot
+		end,
+
+		InstanceFieldSlot = function(self, n)
+			return instanceslots[n]
+		end,
+
+		StaticFieldSlot = function(self, n)
+			return staticslots[n]
 		end,
 
 		ThisClass = function(self)
@@ -1290,9 +3059,136 @@ return function(climploader)
 			return superclimp
 		end,
 
-		InitInstance = function(self, o)
-			o.Fields = ffi_new(instancevartype, {})
-			o.OFields = {}
+		Interfaces = function(self)
+			return interfaces
+		end,
+
+		VirtualMethodNames = function(self)
+			return vnames
+		end,
+
+		VirtualMethodSlot = function(self, n)
+			return vslots[n]
+		end,
+
+		AddSubClimp = function(self, subclimp)
+			subclimps[#subclimps+1] = subclimp
+		end,
+
+		-- Returns an assumption that calling the named method on instances of
+		-- this class (or its subclasses) always reaches the same
+		-- implementation, or nil if it's known not to. The specified method
+		-- is recorded as depending on the assumption, and is recompiled if
+		-- it's broken.
+
+		AssumeSingleImplementation = function(self, n, climp, mname)
+			if overridden[n] then
+				return nil
+			end
+
+			local a = assumptions[n]
+			if not a then
+				a = {Valid = true, Dependents = {}}
+				assumptions[n] = a
+			end
+			-- Dependents maps each climp to the set of its methods which rely
+			-- on the assumption; the same method may ask many times (when
+			-- it's recompiled, reloaded, or inlines the call more than once).
+			local names = a.Dependents[climp]
+			if not names then
+				names = {}
+				a.Dependents[climp] = names
+			end
+			names[mname] = true
+			return a
+		end,
+
+		-- Called when a newly loaded subclass overrides a method; this breaks
+		-- any assumption made about it, and invalidates everything which
+		-- depends on the assumption. Code which is already running is guarded
+		-- by the assumption and so remains safe.
+
+		MarkOverridden = function(self, n)
+			overridden[n] = true
+
+			local a = assumptions[n]
+			if a and a.Valid then
+				if Options.TraceCompilations then
+					dbg("invalidating assumption: ", analysis.ThisClass, "::", n)
+				end
+
+				a.Valid = false
+				for c, names in pairs(a.Dependents) do
+					for mname in pairs(names) do
+						c:InvalidateMethod(mname)
+					end
+				end
+				Runtime.FlushInlineCaches()
+			end
+		end,
+
+		-- Discards the compiled version of a method, so that it's recompiled
+		-- when next used.
+
+		InvalidateMethod = function(self, n)
+			instancemethodcache[n] = nil
+			rawset(staticmethods, n, nil)
+			self:FlushDispatch(n)
+		end,
+
+		-- Runs the class' static constructor, after initialising its
+		-- superclass, unless this has already happened. The class counts as
+		-- initialised as soon as this starts, so that the constructor (and
+		-- anything it calls) can use it, as the JVM specifies.
+
+		Initialise = function(self)
+			if self.Initialised then
+				return
+			end
+			self.Initialised = true
+
+			if superclimp then
+				superclimp:Initialise()
+			end
+
+			local m = self.Methods["<clinit>()V"]
+			if m then
+				m()
+			end
+		end,
+
+		-- Replaces a method which has been translated since it was first
+		-- looked up, so that callers stop going through the old version.
+		-- Nothing happens if the method has been invalidated since.
+
+		ReplaceMethod = function(self, n, old, new)
+			if (instancemethodcache[n] ~= old) then
+				return
+			end
+			instancemethodcache[n] = new
+			if (rawget(staticmethods, n) == old) then
+				rawset(staticmethods, n, new)
+			end
+			self:FlushDispatch(n)
+		end,
+
+		-- Forgets any dispatch table entries for a method in this class and
+		-- its subclasses, so that they're looked up again.
+
+		FlushDispatch = function(self, n)
+			local slot = vslots[n]
+			if slot then
+				rawset(vtable, slot, nil)
+			end
+			for iface, itable in pairs(itables) do
+				local islot = iface:VirtualMethodSlot(n)
+				if islot then
+					rawset(itable, islot, nil)
+				end
+			end
+			for _, s in ipairs(subclimps) do
+				s:FlushDispatch(n)
+			end
 		end,
 
 		ClimpLoader = function(self)
@@ -1301,11 +3197,24 @@ return function(climploader)
 
 		FindStaticMethod = function(self, n)
 			--dbg("looking up ", n, " on ", analysis.ThisClass)
-			local mimpl = analysis.Methods[n]
-			if not mimpl then
+			if not analysis.Methods[n] then
 				return nil
 			end
-			return compile_static_method(self, analysis, mimpl)
+			return self:FindMethod(n)
+		end,
+
+		-- Returns the climp which declares the method that a call to the
+		-- named method on this class resolves to, and the method itself.
+
+		FindMethodDeclaration = function(self, n)
+			local mimpl = analysis.Methods[n]
+			if mimpl then
+				return self, mimpl
+			end
+			if superclimp then
+				return superclimp:FindMethodDeclaration(n)
+			end
+			return nil
 		end,
 
 		FindMethod = function(self, n)
@@ -1317,7 +3226,7 @@ return function(climploader)
 					end
 					return nil
 				end
-				instancemethodcache[n] = compile_nonstatic_method(self, analysis, mimpl)
+				instancemethodcache[n] = compile_any_method(self, analysis, mimpl)
 			end
 			return instancemethodcache[n]
 		end,
@@ -1339,6 +3248,11 @@ return function(climploader)
 		end,
 
 		Methods = staticmethods,
+		Statics = statics,
+		VTable = vtable,
+		ITables = itables,
+		Supertypes = supertypes,
+		Initialised = false,
 	}
 
 	setmetatable(staticmethods,
@@ -8,10 +8,14 @@ local Utils = require("Utils")
 local Options = require("Options")
 local dbg = Utils.Debug
 local classanalyser = require("classanalyser")
+local classreader = require("classreader")
+local CodeCache = require("CodeCache")
+local ClassPath = require("ClassPath")
 local string_find = string.find
+local table_sort = table.sort
 
 local cache = {}
-local path = "../bin/"
+local hashes = {}
 
 -- module reference resolved lazily to avoid startup issues
 local Climp
@@ -35,31 +39,76 @@ local function LoadClimp(self, name)
 		t = {
 			ThisClass = name,
 			SuperClass = "java/lang/Object",
+			Interfaces = {},
 			Fields = {},
 			Methods = {},
 		}
 	else
-		local s = Utils.LoadFile(path..name..".class")
-		t = classanalyser(s)
+		-- Classes in a bundle don't need their class file at all; otherwise
+		-- reuse the parsed class file from an earlier run if there is one.
+
+		local hash = CodeCache.BundledHash(name)
+		local impl = hash and CodeCache.LoadClass(hash)
+		if not impl then
+			local s = ClassPath.Find(name..".class")
+			if not s then
+				Utils.FatalError("can't find class ", name, " on the classpath")
+			end
+			impl = s
+			if CodeCache.Enabled() then
+				hash = CodeCache.Hash(s)
+				impl = CodeCache.LoadClass(hash)
+				if not impl then
+					impl = classreader(s)
+					CodeCache.StoreClass(hash, impl)
+				end
+			end
+		end
+		hashes[name] = hash
+		t = classanalyser(impl)
 	end
 
 	c = Climp(self)
 	cache[name] = c
 	c:Init(t)
 
-	-- Call the static constructor for the class.
-	
-	local m = c.Methods["<clinit>()V"]
-	--dbg("class init: ", name, " = ", m)
-	if m then 
-		m()
-	end
+	-- The static constructor isn't run until the class is first used; see
+	-- Initialise in Climp.
+
 	return c
 end
 
+-- Returns a class if it's already been loaded, or nil.
+
+local function FindLoadedClimp(self, name)
+	return cache[name]
+end
+
+-- Returns the hash of the class file a class was loaded from, which
+-- identifies it in the code cache. Classes synthesised by the VM have the
+-- empty string.
+
+local function ClassHash(self, name)
+	return hashes[name] or ""
+end
+
+-- Returns the names of all the classes loaded so far, in order.
+
+local function LoadedClasses(self)
+	local names = {}
+	for name in pairs(cache) do
+		names[#names+1] = name
+	end
+	table_sort(names)
+	return names
+end
+
 local function New()
 	return {
 		LoadClimp = LoadClimp,
+		FindLoadedClimp = FindLoadedClimp,
+		ClassHash = ClassHash,
+		LoadedClasses = LoadedClasses,
 	}
 end
 
@@ -0,0 +1,281 @@
+-- Luje
+-- © 2013 David Given
+-- This file is redistributable under the terms of the
+-- New BSD License. Please see the COPYING file in the
+-- project root for the full text.
+
+-- The on-disk code cache. When Options.CacheDirectory is set, parsed class
+-- files and translated methods are stored there as LuaJIT bytecode, keyed
+-- by a hash of the class file's contents, so that later runs of the same
+-- program can skip parsing and translation. Anything which would make a
+-- cached entry stale (the VM version, the LuaJIT version, and the options
+-- which affect code generation) is part of the key.
+--
+-- Entries can also be collected into a bundle: a single precompiled file
+-- holding every entry for a program, along with the hashes of its classes
+-- so that they can be used without reading the class files at all.
+
+local Utils = require("Utils")
+local Options = require("Options")
+local Arithmetic = require("Arithmetic")
+local dbg = Utils.Debug
+local bit = require("bit")
+local bit_bxor = bit.bxor
+local bit_lshift = bit.lshift
+local bit_tobit = bit.tobit
+local string_byte = string.byte
+local string_format = string.format
+local string_dump = string.dump
+local table_concat = table.concat
+local table_sort = table.sort
+
+-- Bump this whenever the translator changes what it generates, the format
+-- of the classreader output changes, or intrinsics are added (as methods
+-- with intrinsics mustn't have been inlined).
+
+local VERSION = "luje-10"
+
+local bundle = nil -- the loaded bundle, if any
+local recording = nil -- entries to be written to a new bundle
+
+-- Hashes a string with two differently seeded 32-bit FNV-1a hashes,
+-- returning the result as 16 hex digits.
+
+local function fnv1a(s, h)
+	for i = 1, #s do
+		h = bit_bxor(h, string_byte(s, i))
+		-- h * 16777619, without losing precision
+		h = bit_tobit(bit_lshift(h, 24) + h*403)
+	end
+	return h
+end
+
+local function Hash(s)
+	return string_format("%08x%08x",
+		fnv1a(s, bit_tobit(0x811c9dc5)) % 0x100000000,
+		fnv1a(s, bit_tobit(0x050c5d1f)) % 0x100000000)
+end
+
+-- The part of every key which depends on the VM rather than the program.
+
+local function environment()
+	return table_concat({
+		VERSION,
+		jit and jit.version or "",
+		tostring(Options.CheckNullPointers),
+		tostring(Options.Inline),
+		tostring(Options.InlineSize),
+		tostring(Options.Expressions)
+	}, " ")
+end
+
+-- Converts plain data (the output of classreader, and the descriptions of
+-- constants and dependencies stored with methods) into Lua source.
+
+local function serialise(v, out)
+	local t = type(v)
+	if (t == "table") then
+		local keys = {}
+		for k in pairs(v) do
+			keys[#keys+1] = k
+		end
+		table_sort(keys,
+			function(a, b)
+				if (type(a) == type(b)) then
+					return a < b
+				end
+				return type(a) == "number"
+			end
+		)
+
+		out[#out+1] = "{"
+		for _, k in ipairs(keys) do
+			out[#out+1] = "["
+			serialise(k, out)
+			out[#out+1] = "]="
+			serialise(v[k], out)
+			out[#out+1] = ",\n"
+		end
+		out[#out+1] = "}"
+	elseif (t == "string") then
+		out[#out+1] = string_format("%q", v)
+	elseif (t == "number") or (t == "cdata") then
+		out[#out+1] = Arithmetic.Literal(v)
+	elseif (t == "boolean") then
+		out[#out+1] = tostring(v)
+	else
+		Utils.Throw("can't cache a value of type "..t)
+	end
+end
+
+-- Writes bytecode to a file. The file is written under a temporary name
+-- first, so that a concurrent run never sees a partial entry. Returns an
+-- error message on failure; cache entries are best-effort, so most callers
+-- ignore it.
+
+local function writefile(filename, data)
+	local temporary = filename..".tmp"
+	local fp, e = io.open(temporary, "wb")
+	if not fp then
+		return e
+	end
+	local ok, e = fp:write(data)
+	fp:close()
+	if not ok then
+		os.remove(temporary)
+		return e
+	end
+	ok, e = os.rename(temporary, filename)
+	if not ok then
+		os.remove(temporary)
+		return e
+	end
+	return nil
+end
+
+-- Compiles Lua source and writes it to the cache as bytecode.
+
+local function store(name, source)
+	local chunk, e = load(source, name)
+	Utils.Check(e, "caching failed")
+
+	local data = string_dump(chunk, true)
+	if recording then
+		recording[name] = data
+	end
+	if Options.CacheDirectory then
+		writefile(Options.CacheDirectory.."/"..name, data)
+	end
+end
+
+-- Loads a cache entry and runs it, returning its value, or nil if there
+-- isn't one.
+
+local function fetch(name)
+	local data = bundle and bundle.Entries[name]
+	if not data and Options.CacheDirectory then
+		local fp = io.open(Options.CacheDirectory.."/"..name, "rb")
+		if fp then
+			data = fp:read("*a")
+			fp:close()
+		end
+	end
+	if not data then
+		return nil
+	end
+	if recording then
+		recording[name] = data
+	end
+
+	local chunk = load(data, name)
+	if not chunk then
+		return nil
+	end
+	return chunk()
+end
+
+local function classentry(classhash)
+	return Hash(environment().." "..classhash)..".class"
+end
+
+local function methodentry(classhash, n)
+	return Hash(environment().." "..classhash.." "..n)..".method"
+end
+
+return {
+	Hash = Hash,
+
+	Enabled = function()
+		return not not (Options.CacheDirectory or bundle or recording)
+	end,
+
+	-- Loads a bundle written by WriteBundle; its entries take precedence
+	-- over the cache directory.
+
+	LoadBundle = function(filename)
+		local chunk, e = loadfile(filename)
+		if not chunk then
+			Utils.UserError("can't load bundle: "..e)
+		end
+		bundle = chunk()
+	end,
+
+	-- Returns the hash of a class recorded in the bundle, or nil.
+
+	BundledHash = function(classname)
+		return bundle and bundle.Hashes[classname]
+	end,
+
+	-- Starts recording every entry which is used or created, for
+	-- WriteBundle.
+
+	StartBundle = function()
+		recording = {}
+	end,
+
+	-- Writes out the recorded entries, plus the supplied table mapping
+	-- class names to hashes, as a bundle.
+
+	WriteBundle = function(filename, hashes)
+		local out = {"return {Hashes="}
+		serialise(hashes, out)
+		out[#out+1] = ",\nEntries="
+		serialise(recording, out)
+		out[#out+1] = "}"
+
+		local chunk, e = load(table_concat(out), filename)
+		Utils.Check(e, "bundling failed")
+		e = writefile(filename, string_dump(chunk, true))
+		if e then
+			Utils.UserError("can't write bundle ", filename, ": ", e)
+		end
+	end,
+
+	-- Returns the cached classreader output for a class file, or nil.
+
+	LoadClass = function(classhash)
+		return fetch(classentry(classhash))
+	end,
+
+	StoreClass = function(classhash, impl)
+		-- classreader decodes constants lazily; decode them all so that
+		-- they're all stored.
+
+		local constants = impl.constants
+		for i = 1, impl.constant_pool_count-1 do
+			local _ = constants[i]
+		end
+
+		local out = {"return "}
+		serialise(impl, out)
+		store(classentry(classhash), table_concat(out))
+	end,
+
+	-- Returns the cached translation of a method, or nil. This is a table
+	-- containing:
+	--
+	--   Dependencies: a list of {classname, hash} pairs, for every class
+	--     whose contents the translation relied on;
+	--   Constants: descriptions of the method's constants;
+	--   Constructor: the function which, given the constants, returns the
+	--     method.
+
+	LoadMethod = function(classhash, n)
+		return fetch(methodentry(classhash, n))
+	end,
+
+	StoreMethod = function(classhash, n, dependencies, constants, source)
+		local out = {"return {Dependencies="}
+		serialise(dependencies, out)
+		out[#out+1] = ",\nConstants="
+		serialise(constants, out)
+		out[#out+1] = ",\nConstructor=function()\n"
+		out[#out+1] = source
+		out[#out+1] = "\nend}"
+
+		if Options.TraceCompilations then
+			dbg("caching: ", n)
+		end
+		store(methodentry(classhash, n), table_concat(out))
+	end,
+}
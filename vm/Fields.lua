@@ -0,0 +1,65 @@
+-- Luje
+-- © 2013 David Given
+-- This file is redistributable under the terms of the
+-- New BSD License. Please see the COPYING file in the
+-- project root for the full text.
+
+-- Field resolution and layout lookups, shared by the translator and the
+-- interpreter.
+
+local Utils = require("Utils")
+local string_gsub = string.gsub
+
+-- Resolves a field reference in a climp.
+
+local function search_for_field_in_climp_class_hierarchy(climp, name)
+	if climp.Analysis.Fields[name] then
+		return climp
+	end
+	local superclimp = climp:SuperClimp()
+	if superclimp then
+		return search_for_field_in_climp_class_hierarchy(superclimp, name)
+	end
+	return nil
+end
+
+local function resolve_field_reference(climp, field)
+	if not field.ResolvedClass then
+		field.ResolvedClass = search_for_field_in_climp_class_hierarchy(climp, field.Name)
+	end
+	return field.ResolvedClass
+end
+
+-- Massages a field into a C name.
+
+local function field_name(climp, field)
+	local s = (resolve_field_reference(climp, field).ThisClass()).."/"..field.Name..field.Descriptor
+	s = string_gsub(s, "_", "_U_")
+	s = string_gsub(s, "/", "_S_")
+	s = string_gsub(s, "%$", "_D_")
+	return s
+end
+
+-- Returns the slot which an object field occupies in its instances.
+
+local function instance_field_slot(c, f)
+	local slot = resolve_field_reference(c, f):InstanceFieldSlot(field_name(c, f))
+	Utils.Assert(slot, "no instance field ", f.Class, "::", f.Name)
+	return slot
+end
+
+-- Returns the climp declaring a static field, and the slot the field occupies
+-- in its Statics table.
+
+local function static_field_slot(c, f)
+	local dc = resolve_field_reference(c, f)
+	local slot = dc:StaticFieldSlot(field_name(c, f))
+	Utils.Assert(slot, "no static field ", f.Class, "::", f.Name)
+	return dc, slot
+end
+
+return {
+	FieldName = field_name,
+	InstanceFieldSlot = instance_field_slot,
+	StaticFieldSlot = static_field_slot,
+}
@@ -0,0 +1,804 @@
+-- Luje
+-- © 2013 David Given
+-- This file is redistributable under the terms of the
+-- New BSD License. Please see the COPYING file in the
+-- project root for the full text.
+
+-- The bytecode interpreter, which runs methods until they're hot enough to
+-- be worth translating. Values have the same representations as in
+-- translated code, so the two can call each other freely. Locals and the
+-- operand stack are tables indexed from 0; longs and doubles take two
+-- slots, the second of which is unused, just as in the JVM.
+--
+-- Each method has a profile shared by all its invocations. The interpreter
+-- counts back-edges in it, and once the method is hot asks the profile
+-- for an on-stack replacement: a translation of the method which starts
+-- at the loop header, given the current locals.
+
+local ffi = require("ffi")
+local bit = require("bit")
+local Utils = require("Utils")
+local Options = require("Options")
+local Runtime = require("Runtime")
+local Arithmetic = require("Arithmetic")
+local Cast = require("Cast")
+local string_byte = string.byte
+local string_find = string.find
+local string_format = string.format
+local bit_tobit = bit.tobit
+local bit_lshift = bit.lshift
+local bit_rshift = bit.rshift
+local bit_arshift = bit.arshift
+local bit_band = bit.band
+local bit_bor = bit.bor
+local bit_bxor = bit.bxor
+local math_fmod = math.fmod
+local cast = ffi.cast
+local unpack = unpack
+local BtoSB = Cast.BtoSB
+local BBtoW = Cast.BBtoW
+local WtoSW = Cast.WtoSW
+local WWtoI = Cast.WWtoI
+local ItoSI = Cast.ItoSI
+local IDiv = Arithmetic.IDiv
+local IRem = Arithmetic.IRem
+local D2I = Arithmetic.D2I
+local D2L = Arithmetic.D2L
+local LRem = Arithmetic.LRem
+
+-- Operand decoding; p is the (zero-based) address of the operand.
+
+local function u1(code, p)
+	return string_byte(code, p+1)
+end
+
+local function s1(code, p)
+	return BtoSB(u1(code, p))
+end
+
+local function u2(code, p)
+	return BBtoW(u1(code, p), u1(code, p+1))
+end
+
+local function s2(code, p)
+	return WtoSW(u2(code, p))
+end
+
+local function s4(code, p)
+	return ItoSI(WWtoI(u2(code, p), u2(code, p+2)))
+end
+
+-- Runtime checks, which throw the same exceptions as translated code.
+
+local function nullcheck(o)
+	if (o == nil) then
+		error(Runtime.NullPointerException())
+	end
+end
+
+local function boundscheck(a, i)
+	nullcheck(a)
+	if (i < 0) or (i >= a.length) then
+		error(Runtime.ArrayIndexOutOfBoundsException())
+	end
+end
+
+local function divisioncheck(d)
+	if (d == 0) then
+		error(Runtime.ArithmeticException())
+	end
+end
+
+-- Resolves the reference made by the instruction at pc (see
+-- Runtime.Resolve) the first time it's executed. The profile holds the
+-- cache, as it's per method.
+
+local function resolved(fr, pc, kind, i)
+	local cache = fr.profile.Resolved
+	if not cache then
+		cache = {}
+		fr.profile.Resolved = cache
+	end
+
+	local r = cache[pc]
+	if not r then
+		r = Runtime.Resolve({Kind = kind, Climp = fr.climp, Index = i})
+		cache[pc] = r
+	end
+	return r
+end
+
+-- Converts a value being stored into a field, if necessary.
+
+local function fieldvalue(f, v)
+	if (f.Descriptor == "F") then
+		return tonumber(cast("float", v))
+	end
+	return v
+end
+
+-- Takes a branch. Back-edges count towards the method becoming hot; once
+-- it is, if the stack is empty, this stops interpretation so that the rest
+-- of the invocation can run in translated code.
+
+local function branch(fr, pc, target)
+	if (target <= pc) then
+		local profile = fr.profile
+		local count = profile.Count + 1
+		profile.Count = count
+		if (count >= Options.HotThreshold) and (fr.sp == 0) and
+				not profile.NoOnStackReplacement then
+			fr.osr = target
+			return nil
+		end
+	end
+	return target
+end
+
+-- Calls a method, popping its parameters (and receiver, if self is set)
+-- and pushing its result.
+
+local function call(fr, m, f, self)
+	local s = fr.s
+	local sp = fr.sp
+	local n = #f.InParams
+	local args = {}
+	for i = n, 1, -1 do
+		sp = sp - f.InParams[i]
+		args[i] = s[sp]
+	end
+
+	local r
+	if self then
+		sp = sp - 1
+		r = m(s[sp], unpack(args, 1, n))
+	else
+		r = m(unpack(args, 1, n))
+	end
+
+	s[sp] = r
+	fr.sp = sp + f.OutParams
+end
+
+-- Opcode implementations. Each takes the frame and the address of the
+-- opcode, and returns the address of the next one to execute, or nil to
+-- stop (when returning, or for an on-stack replacement).
+
+local function const_op(value, size)
+	return function(fr, pc)
+		fr.s[fr.sp] = value
+		fr.sp = fr.sp + size
+		return pc + 1
+	end
+end
+
+local function load_op(size, index)
+	return function(fr, pc)
+		local next = pc + 1
+		local i = index
+		if not i then
+			i = u1(fr.code, pc+1)
+			next = pc + 2
+		end
+		fr.s[fr.sp] = fr.l[i]
+		fr.sp = fr.sp + size
+		return next
+	end
+end
+
+local function store_op(size, index)
+	return function(fr, pc)
+		local next = pc + 1
+		local i = index
+		if not i then
+			i = u1(fr.code, pc+1)
+			next = pc + 2
+		end
+		fr.sp = fr.sp - size
+		fr.l[i] = fr.s[fr.sp]
+		return next
+	end
+end
+
+-- As in the translator, reference arrays are offset by one.
+
+local function arrayload_op(size, offset)
+	offset = offset or 0
+	return function(fr, pc)
+		local s = fr.s
+		local sp = fr.sp - 2
+		local a, i = s[sp], s[sp+1]
+		boundscheck(a, i)
+		s[sp] = a.store[i+offset]
+		fr.sp = sp + size
+		return pc + 1
+	end
+end
+
+local function arraystore_op(size, offset)
+	offset = offset or 0
+	return function(fr, pc)
+		local s = fr.s
+		local sp = fr.sp - 2 - size
+		local a, i = s[sp], s[sp+1]
+		boundscheck(a, i)
+		a.store[i+offset] = s[sp+2]
+		fr.sp = sp
+		return pc + 1
+	end
+end
+
+-- Stack manipulation: pops count slots, and pushes them back in the order
+-- given by the permutation (which is of zero-based offsets).
+
+local function permute_op(count, permutation)
+	return function(fr, pc)
+		local s = fr.s
+		local sp = fr.sp - count
+		local v = {}
+		for k = 0, count-1 do
+			v[k] = s[sp+k]
+		end
+		for k, p in ipairs(permutation) do
+			s[sp+k-1] = v[p]
+		end
+		fr.sp = sp + #permutation
+		return pc + 1
+	end
+end
+
+local function unary_op(size, asize, fn)
+	return function(fr, pc)
+		local s = fr.s
+		local sp = fr.sp - asize
+		s[sp] = fn(s[sp])
+		fr.sp = sp + size
+		return pc + 1
+	end
+end
+
+local function binary_op(size, asize, bsize, fn)
+	return function(fr, pc)
+		local s = fr.s
+		local sp = fr.sp - asize - bsize
+		s[sp] = fn(s[sp], s[sp+asize])
+		fr.sp = sp + size
+		return pc + 1
+	end
+end
+
+local function compare_op(size, equal, greater, less, unordered)
+	return binary_op(1, size, size,
+		function(a, b)
+			if (a == b) then
+				return equal
+			elseif (a > b) then
+				return greater
+			elseif (a < b) then
+				return less
+			end
+			return unordered
+		end
+	)
+end
+
+local function if_op(test)
+	return function(fr, pc)
+		fr.sp = fr.sp - 1
+		if test(fr.s[fr.sp]) then
+			return branch(fr, pc, pc + s2(fr.code, pc+1))
+		end
+		return pc + 3
+	end
+end
+
+local function ifcmp_op(test)
+	return function(fr, pc)
+		fr.sp = fr.sp - 2
+		if test(fr.s[fr.sp], fr.s[fr.sp+1]) then
+			return branch(fr, pc, pc + s2(fr.code, pc+1))
+		end
+		return pc + 3
+	end
+end
+
+local function return_op(size)
+	return function(fr, pc)
+		if (size > 0) then
+			fr.result = fr.s[fr.sp - size]
+		end
+		return nil
+	end
+end
+
+local function switch_op(lookup)
+	return function(fr, pc)
+		local code = fr.code
+		fr.sp = fr.sp - 1
+		local key = fr.s[fr.sp]
+
+		local p = pc + 1
+		while ((p % 4) ~= 0) do
+			p = p + 1
+		end
+
+		local target = pc + s4(code, p)
+		if lookup then
+			for i = 0, s4(code, p+4)-1 do
+				local q = p + 8 + i*8
+				if (s4(code, q) == key) then
+					target = pc + s4(code, q+4)
+					break
+				end
+			end
+		else
+			local low = s4(code, p+4)
+			local high = s4(code, p+8)
+			if (key >= low) and (key <= high) then
+				target = pc + s4(code, p + 12 + (key-low)*4)
+			end
+		end
+		return branch(fr, pc, target)
+	end
+end
+
+local function ldc(fr, i)
+	fr.s[fr.sp] = fr.climp:GetConstantValue(i)
+end
+
+local ops = {
+	[0x00] = function(fr, pc) -- nop
+		return pc + 1
+	end,
+
+	[0x01] = const_op(nil, 1), -- aconst_null
+	[0x02] = const_op(-1, 1), -- iconst_m1
+	[0x03] = const_op(0, 1), -- iconst_0
+	[0x04] = const_op(1, 1), -- iconst_1
+	[0x05] = const_op(2, 1), -- iconst_2
+	[0x06] = const_op(3, 1), -- iconst_3
+	[0x07] = const_op(4, 1), -- iconst_4
+	[0x08] = const_op(5, 1), -- iconst_5
+	[0x09] = const_op(0LL, 2), -- lconst_0
+	[0x0a] = const_op(1LL, 2), -- lconst_1
+	[0x0b] = const_op(0, 1), -- fconst_0
+	[0x0c] = const_op(1, 1), -- fconst_1
+	[0x0d] = const_op(2, 1), -- fconst_2
+	[0x0e] = const_op(0, 2), -- dconst_0
+	[0x0f] = const_op(1, 2), -- dconst_1
+
+	[0x10] = function(fr, pc) -- bipush
+		fr.s[fr.sp] = s1(fr.code, pc+1)
+		fr.sp = fr.sp + 1
+		return pc + 2
+	end,
+
+	[0x11] = function(fr, pc) -- sipush
+		fr.s[fr.sp] = s2(fr.code, pc+1)
+		fr.sp = fr.sp + 1
+		return pc + 3
+	end,
+
+	[0x12] = function(fr, pc) -- ldc
+		ldc(fr, u1(fr.code, pc+1))
+		fr.sp = fr.sp + 1
+		return pc + 2
+	end,
+
+	[0x13] = function(fr, pc) -- ldc_w
+		ldc(fr, u2(fr.code, pc+1))
+		fr.sp = fr.sp + 1
+		return pc + 3
+	end,
+
+	[0x14] = function(fr, pc) -- ldc2_w
+		ldc(fr, u2(fr.code, pc+1))
+		fr.sp = fr.sp + 2
+		return pc + 3
+	end,
+
+	[0x84] = function(fr, pc) -- iinc
+		local i = u1(fr.code, pc+1)
+		fr.l[i] = bit_tobit(fr.l[i] + s1(fr.code, pc+2))
+		return pc + 3
+	end,
+
+	[0x2e] = arrayload_op(1), -- iaload
+	[0x2f] = arrayload_op(2), -- laload
+	[0x30] = arrayload_op(1), -- faload
+	[0x31] = arrayload_op(2), -- daload
+	[0x32] = arrayload_op(1, 1), -- aaload
+	[0x33] = arrayload_op(1), -- baload
+	[0x34] = arrayload_op(1), -- caload
+	[0x35] = arrayload_op(1), -- saload
+
+	[0x4f] = arraystore_op(1), -- iastore
+	[0x50] = arraystore_op(2), -- lastore
+	[0x51] = arraystore_op(1), -- fastore
+	[0x52] = arraystore_op(2), -- dastore
+	[0x53] = arraystore_op(1, 1), -- aastore
+	[0x54] = arraystore_op(1), -- bastore
+	[0x55] = arraystore_op(1), -- castore
+	[0x56] = arraystore_op(1), -- sastore
+
+	[0x57] = permute_op(1, {}), -- pop
+	[0x58] = permute_op(2, {}), -- pop2
+	[0x59] = permute_op(1, {0, 0}), -- dup
+	[0x5a] = permute_op(2, {1, 0, 1}), -- dup_x1
+	[0x5b] = permute_op(3, {2, 0, 1, 2}), -- dup_x2
+	[0x5c] = permute_op(2, {0, 1, 0, 1}), -- dup2
+	[0x5d] = permute_op(3, {1, 2, 0, 1, 2}), -- dup2_x1
+	[0x5e] = permute_op(4, {2, 3, 0, 1, 2, 3}), -- dup2_x2
+	[0x5f] = permute_op(2, {1, 0}), -- swap
+
+	-- Arithmetic mirrors the translator's exactly, so that results don't
+	-- depend on which tier a method happens to be running in.
+
+	[0x60] = binary_op(1, 1, 1, function(a, b) return bit_tobit(a + b) end), -- iadd
+	[0x61] = binary_op(2, 2, 2, function(a, b) return a + b end), -- ladd
+	[0x62] = binary_op(1, 1, 1, function(a, b) return a + b end), -- fadd
+	[0x63] = binary_op(2, 2, 2, function(a, b) return a + b end), -- dadd
+	[0x64] = binary_op(1, 1, 1, function(a, b) return bit_tobit(a - b) end), -- isub
+	[0x65] = binary_op(2, 2, 2, function(a, b) return a - b end), -- lsub
+	[0x66] = binary_op(1, 1, 1, function(a, b) return a - b end), -- fsub
+	[0x67] = binary_op(2, 2, 2, function(a, b) return a - b end), -- dsub
+	[0x68] = binary_op(1, 1, 1, -- imul
+		function(a, b) return tonumber(cast("int32_t", cast("int64_t", a) * b)) end),
+	[0x69] = binary_op(2, 2, 2, function(a, b) return a * b end), -- lmul
+	[0x6a] = binary_op(1, 1, 1, function(a, b) return a * b end), -- fmul
+	[0x6b] = binary_op(2, 2, 2, function(a, b) return a * b end), -- dmul
+	[0x6c] = binary_op(1, 1, 1, function(a, b) divisioncheck(b) return IDiv(a, b) end), -- idiv
+	[0x6d] = binary_op(2, 2, 2, function(a, b) divisioncheck(b) return a / b end), -- ldiv
+	[0x6e] = binary_op(1, 1, 1, function(a, b) return a / b end), -- fdiv
+	[0x6f] = binary_op(2, 2, 2, function(a, b) return a / b end), -- ddiv
+	[0x70] = binary_op(1, 1, 1, function(a, b) divisioncheck(b) return IRem(a, b) end), -- irem
+	[0x71] = binary_op(2, 2, 2, function(a, b) divisioncheck(b) return LRem(a, b) end), -- lrem
+	[0x72] = binary_op(1, 1, 1, -- frem
+		function(a, b) return tonumber(cast("float", math_fmod(a, b))) end),
+	[0x73] = binary_op(2, 2, 2, math_fmod), -- drem
+	[0x74] = unary_op(1, 1, function(a) return bit_tobit(-a) end), -- ineg
+	[0x75] = unary_op(2, 2, function(a) return -a end), -- lneg
+	[0x76] = unary_op(1, 1, function(a) return -a end), -- fneg
+	[0x77] = unary_op(2, 2, function(a) return -a end), -- dneg
+	[0x78] = binary_op(1, 1, 1, bit_lshift), -- ishl
+	[0x79] = binary_op(2, 2, 1, Arithmetic.LShl), -- lshl
+	[0x7a] = binary_op(1, 1, 1, bit_arshift), -- ishr
+	[0x7b] = binary_op(2, 2, 1, Arithmetic.LShr), -- lshr
+	[0x7c] = binary_op(1, 1, 1, bit_rshift), -- iushr
+	[0x7d] = binary_op(2, 2, 1, Arithmetic.LUShr), -- lushr
+	[0x7e] = binary_op(1, 1, 1, bit_band), -- iand
+	[0x7f] = binary_op(2, 2, 2, Arithmetic.LAnd), -- land
+	[0x80] = binary_op(1, 1, 1, bit_bor), -- ior
+	[0x81] = binary_op(2, 2, 2, Arithmetic.LOr), -- lor
+	[0x82] = binary_op(1, 1, 1, bit_bxor), -- ixor
+	[0x83] = binary_op(2, 2, 2, Arithmetic.LXor), -- lxor
+
+	[0x85] = unary_op(2, 1, function(a) return cast("int64_t", a) end), -- i2l
+	[0x86] = unary_op(1, 1, function(a) return tonumber(cast("float", a)) end), -- i2f
+	[0x87] = unary_op(2, 1, function(a) return a end), -- i2d
+	[0x88] = unary_op(1, 2, function(a) return tonumber(cast("int32_t", a)) end), -- l2i
+	[0x89] = unary_op(1, 2, function(a) return tonumber(cast("float", a)) end), -- l2f
+	[0x8a] = unary_op(2, 2, tonumber), -- l2d
+	[0x8b] = unary_op(1, 1, D2I), -- f2i
+	[0x8c] = unary_op(2, 1, D2L), -- f2l
+	[0x8d] = unary_op(2, 1, function(a) return a end), -- f2d
+	[0x8e] = unary_op(1, 2, D2I), -- d2i
+	[0x8f] = unary_op(2, 2, D2L), -- d2l
+	[0x90] = unary_op(1, 2, function(a) return tonumber(cast("float", a)) end), -- d2f
+	[0x91] = unary_op(1, 1, function(a) return tonumber(cast("int8_t", a)) end), -- i2b
+	[0x92] = unary_op(1, 1, function(a) return tonumber(cast("uint16_t", a)) end), -- i2c
+	[0x93] = unary_op(1, 1, function(a) return tonumber(cast("int16_t", a)) end), -- i2s
+
+	[0x94] = compare_op(2, 0, 1, -1, nil), -- lcmp
+	[0x95] = compare_op(1, 0, 1, -1, -1), -- fcmpl
+	[0x96] = compare_op(1, 0, 1, -1, 1), -- fcmpg
+	[0x97] = compare_op(2, 0, 1, -1, -1), -- dcmpl
+	[0x98] = compare_op(2, 0, 1, -1, 1), -- dcmpg
+
+	[0x99] = if_op(function(a) return a == 0 end), -- ifeq
+	[0x9a] = if_op(function(a) return a ~= 0 end), -- ifne
+	[0x9b] = if_op(function(a) return a < 0 end), -- iflt
+	[0x9c] = if_op(function(a) return a >= 0 end), -- ifge
+	[0x9d] = if_op(function(a) return a > 0 end), -- ifgt
+	[0x9e] = if_op(function(a) return a <= 0 end), -- ifle
+	[0x9f] = ifcmp_op(function(a, b) return a == b end), -- if_icmpeq
+	[0xa0] = ifcmp_op(function(a, b) return a ~= b end), -- if_icmpne
+	[0xa1] = ifcmp_op(function(a, b) return a < b end), -- if_icmplt
+	[0xa2] = ifcmp_op(function(a, b) return a >= b end), -- if_icmpge
+	[0xa3] = ifcmp_op(function(a, b) return a > b end), -- if_icmpgt
+	[0xa4] = ifcmp_op(function(a, b) return a <= b end), -- if_icmple
+	[0xa5] = ifcmp_op(function(a, b) return a == b end), -- if_acmpeq
+	[0xa6] = ifcmp_op(function(a, b) return a ~= b end), -- if_acmpne
+
+	[0xa7] = function(fr, pc) -- goto
+		return branch(fr, pc, pc + s2(fr.code, pc+1))
+	end,
+
+	[0xaa] = switch_op(false), -- tableswitch
+	[0xab] = switch_op(true), -- lookupswitch
+
+	[0xac] = return_op(1), -- ireturn
+	[0xad] = return_op(2), -- lreturn
+	[0xae] = return_op(1), -- freturn
+	[0xaf] = return_op(2), -- dreturn
+	[0xb0] = return_op(1), -- areturn
+	[0xb1] = return_op(0), -- return
+
+	[0xb2] = function(fr, pc) -- getstatic
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local r = resolved(fr, pc, "static", i)
+		fr.s[fr.sp] = r.Statics[r.Slot]
+		fr.sp = fr.sp + f.Size
+		return pc + 3
+	end,
+
+	[0xb3] = function(fr, pc) -- putstatic
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local r = resolved(fr, pc, "static", i)
+		fr.sp = fr.sp - f.Size
+		r.Statics[r.Slot] = fieldvalue(f, fr.s[fr.sp])
+		return pc + 3
+	end,
+
+	[0xb4] = function(fr, pc) -- getfield
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local slot = resolved(fr, pc, "field", i).Slot
+		local sp = fr.sp - 1
+		local o = fr.s[sp]
+		nullcheck(o)
+		fr.s[sp] = o[slot]
+		fr.sp = sp + f.Size
+		return pc + 3
+	end,
+
+	[0xb5] = function(fr, pc) -- putfield
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local slot = resolved(fr, pc, "field", i).Slot
+		local sp = fr.sp - f.Size - 1
+		local o = fr.s[sp]
+		nullcheck(o)
+		o[slot] = fieldvalue(f, fr.s[sp+1])
+		fr.sp = sp
+		return pc + 3
+	end,
+
+	[0xb6] = function(fr, pc) -- invokevirtual
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local r = resolved(fr, pc, "method", i)
+		local o = fr.s[fr.sp-1-f.Size]
+		nullcheck(o)
+		call(fr, o.Climp.VTable[r.Slot], f, true)
+		return pc + 3
+	end,
+
+	[0xb7] = function(fr, pc) -- invokespecial
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local c = resolved(fr, pc, "method", i).Climp
+		nullcheck(fr.s[fr.sp-1-f.Size])
+		call(fr, c:FindMethod(f.Name..f.Descriptor), f, true)
+		return pc + 3
+	end,
+
+	[0xb8] = function(fr, pc) -- invokestatic
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local c = resolved(fr, pc, "staticmethod", i).Climp
+		call(fr, c:FindMethod(f.Name..f.Descriptor), f, false)
+		return pc + 3
+	end,
+
+	[0xb9] = function(fr, pc) -- invokeinterface
+		local i = u2(fr.code, pc+1)
+		local f = fr.analysis.RefConstants[i]
+		local r = resolved(fr, pc, "method", i)
+		local o = fr.s[fr.sp-1-f.Size]
+		nullcheck(o)
+		call(fr, o.Climp.ITables[r.Climp][r.Slot], f, true)
+		return pc + 5
+	end,
+
+	[0xbb] = function(fr, pc) -- new
+		local c = resolved(fr, pc, "new", u2(fr.code, pc+1)).Climp
+		fr.s[fr.sp] = Runtime.New(c)
+		fr.sp = fr.sp + 1
+		return pc + 3
+	end,
+
+	[0xbc] = function(fr, pc) -- newarray
+		local sp = fr.sp - 1
+		fr.s[sp] = Runtime.NewArray(u1(fr.code, pc+1), fr.s[sp])
+		return pc + 2
+	end,
+
+	[0xbd] = function(fr, pc) -- anewarray
+		local c = resolved(fr, pc, "class", u2(fr.code, pc+1)).Climp
+		local sp = fr.sp - 1
+		fr.s[sp] = Runtime.NewAArray(c, fr.s[sp])
+		return pc + 3
+	end,
+
+	[0xbe] = function(fr, pc) -- arraylength
+		local sp = fr.sp - 1
+		nullcheck(fr.s[sp])
+		fr.s[sp] = fr.s[sp].length
+		return pc + 1
+	end,
+
+	[0xbf] = function(fr, pc) -- athrow
+		local o = fr.s[fr.sp-1]
+		nullcheck(o)
+		error(o)
+	end,
+
+	[0xc0] = function(fr, pc) -- checkcast
+		local c = resolved(fr, pc, "class", u2(fr.code, pc+1)).Climp
+		if not Runtime.InstanceOf(fr.s[fr.sp-1], c) then
+			error("bad cast")
+		end
+		return pc + 3
+	end,
+
+	[0xc1] = function(fr, pc) -- instanceof
+		local c = resolved(fr, pc, "class", u2(fr.code, pc+1)).Climp
+		local sp = fr.sp - 1
+		local o = fr.s[sp]
+		fr.s[sp] = ((o ~= nil) and Runtime.InstanceOf(o, c)) and 1 or 0
+		return pc + 3
+	end,
+
+	[0xc2] = permute_op(1, {}), -- monitorenter
+	[0xc3] = permute_op(1, {}), -- monitorexit
+
+	[0xc4] = function(fr, pc) -- wide
+		local code = fr.code
+		local opcode = u1(code, pc+1)
+		local i = u2(code, pc+2)
+		if (opcode == 0x84) then -- iinc
+			fr.l[i] = bit_tobit(fr.l[i] + s2(code, pc+4))
+			return pc + 6
+		elseif (opcode >= 0x15) and (opcode <= 0x19) then -- loads
+			fr.s[fr.sp] = fr.l[i]
+			fr.sp = fr.sp + (((opcode == 0x16) or (opcode == 0x18)) and 2 or 1)
+		elseif (opcode >= 0x36) and (opcode <= 0x3a) then -- stores
+			fr.sp = fr.sp - (((opcode == 0x37) or (opcode == 0x39)) and 2 or 1)
+			fr.l[i] = fr.s[fr.sp]
+		else
+			Utils.Throw("unimplemented wide opcode 0x"..string_format("%02x", opcode))
+		end
+		return pc + 4
+	end,
+
+	[0xc6] = if_op(function(a) return a == nil end), -- ifnull
+	[0xc7] = if_op(function(a) return a ~= nil end), -- ifnonnull
+
+	[0xc8] = function(fr, pc) -- goto_w
+		return branch(fr, pc, pc + s4(fr.code, pc+1))
+	end,
+}
+
+-- The typed load and store opcodes, with explicit and implicit indices.
+
+do
+	local sizes = {1, 2, 1, 2, 1} -- i, l, f, d, a
+	for k, size in ipairs(sizes) do
+		ops[0x14+k] = load_op(size, nil)
+		ops[0x35+k] = store_op(size, nil)
+		for i = 0, 3 do
+			ops[0x1a + (k-1)*4 + i] = load_op(size, i)
+			ops[0x3b + (k-1)*4 + i] = store_op(size, i)
+		end
+	end
+end
+
+-- Runs a frame until it returns or wants to be replaced.
+
+local function run(fr)
+	local code = fr.code
+	local pc = fr.pc
+	while pc do
+		fr.pc = pc
+		local opcode = string_byte(code, pc+1)
+		local op = ops[opcode]
+		if not op then
+			Utils.Throw("unimplemented opcode 0x"..string_format("%02x", opcode))
+		end
+		pc = op(fr, pc)
+	end
+end
+
+-- Returns the handler for an exception thrown by the current instruction,
+-- or nil.
+
+local function findhandler(fr, e)
+	for _, t in ipairs(fr.exceptiontable) do
+		if (fr.pc >= t.start_pc) and (fr.pc < t.end_pc) then
+			if (t.catch_type == 0) or
+					Runtime.InstanceOf(e, resolved(fr, "catch"..t.catch_type, "class",
+						t.catch_type).Climp) then
+				return t.handler_pc
+			end
+		end
+	end
+	return nil
+end
+
+-- Interprets one invocation of a method.
+
+local function Interpret(climp, mimpl, profile, ...)
+	local fr = {
+		climp = climp,
+		analysis = climp.Analysis,
+		code = mimpl.Code.Bytecode,
+		exceptiontable = mimpl.Code.ExceptionTable,
+		profile = profile,
+		l = {},
+		s = {},
+		sp = 0,
+		pc = 0,
+	}
+
+	-- Unpack the parameters into locals.
+
+	local l = fr.l
+	local i = 0
+	local a = 1
+	if not string_find(mimpl.AccessFlags, " static ") then
+		l[0] = (...)
+		i = 1
+		a = 2
+	end
+	for _, d in ipairs(mimpl.InParams) do
+		l[i] = (select(a, ...))
+		i = i + d
+		a = a + 1
+	end
+
+	-- Methods without exception handlers just let exceptions propagate;
+	-- otherwise, caught Java exceptions resume at their handler with only
+	-- the exception on the stack.
+
+	while true do
+		local ok, e = true, nil
+		if (#fr.exceptiontable == 0) then
+			run(fr)
+		else
+			ok, e = pcall(run, fr)
+		end
+
+		if not ok then
+			if (type(e) ~= "table") then
+				error(e, 0)
+			end
+			local handler = findhandler(fr, e)
+			if not handler then
+				error(e)
+			end
+			fr.s = {[0] = e}
+			fr.sp = 1
+			fr.pc = handler
+		elseif fr.osr then
+			-- The replacement runs outside the pcall, as it handles its own
+			-- exceptions.
+
+			local m = profile.OnStackReplacement(fr.osr)
+			if m then
+				return m(fr.l)
+			end
+			profile.NoOnStackReplacement = true
+			fr.pc = fr.osr
+			fr.osr = nil
+		else
+			return fr.result
+		end
+	end
+end
+
+return {
+	Interpret = Interpret,
+}
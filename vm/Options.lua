@@ -7,6 +7,12 @@
 return {
 	CheckNullPointers = true,
 	DumpCompilations = false,
-	TraceCompilations = false
+	TraceCompilations = false,
+	Inline = true,
+	InlineSize = 35,
+	Expressions = true,
+	CacheDirectory = nil,
+	Tiered = true,
+	HotThreshold = 1000
 }
 
@@ -7,12 +7,26 @@
 local ffi = require("ffi")
 local Utils = require("Utils")
 local dbg = Utils.Debug
-local string_byte = string.byte
 local string_find = string.find
 local string_sub = string.sub
-local string_char = string.char
+local math_floor = math.floor
 local table_concat = table.concat
 local ClimpLoader = require("ClimpLoader")
+local Fields = require("Fields")
+
+-- table.new preallocates a table; it's only available in LuaJIT 2.1.
+
+local table_new
+do
+	local ok, tn = pcall(require, "table.new")
+	if ok then
+		table_new = tn
+	else
+		table_new = function(narray, nhash)
+			return {}
+		end
+	end
+end
 
 local native_methods = {}
 local globalhash = 0
@@ -21,115 +35,379 @@ local stringobjects = {}
 
 local primitivetypes =
 {
-	[4] = {"Z", "bool"},
+	[4] = {"Z", "uint8_t"},
 	[5] = {"C", "uint16_t"},
 	[6] = {"F", "float"},
 	[7] = {"D", "double"},
-	[8] = {"B", "uint8_t"},
+	[8] = {"B", "int8_t"},
 	[9] = {"S", "int16_t"},
 	[10] = {"I", "int32_t"},
 	[11] = {"J", "int64_t"}
 }
 
+-- Objects are single tables which refer directly to their climp (which
+-- holds the method tables shared by all instances of the class) and store
+-- their identity hash inline; fields live in the integer slots. The climp
+-- supplies the allocator.
+
 local function New(climp)
 	local hash = globalhash
 	globalhash = globalhash + 1
-
-	local methods = {}
-	setmetatable(methods,
-		{
-			__index = function(self, k)
-				local m = climp:FindMethod(k)
-				rawset(methods, k, m)
-				return m
-			end
-		}
-	)
-
-	local fields = {}
-
-	local o = {
-		Climp = function() return climp end,
-		Hash = function() return hash end,
-		Methods = methods,
-		Fields = fields
-	}
-	climp:InitInstance(o)
-
-	return o
+	return climp.NewInstance(hash)
 end
 
 local function simpleconstructor(n)
 	local c = ClimpLoader.Default:LoadClimp(n)
+	c:Initialise()
 	local o = New(c)
-	o.Methods["<init>()V"](o)
+	c.Methods["<init>()V"](o)
 	return o
 end
 
-local function NewArray(kind, length)
-	local k = primitivetypes[kind]
-	Utils.Assert(k, "unsupported primitive kind ", kind)
-	local typechar, impl = k[1], k[2]
+-- Arrays are objects with their length and storage (an FFI array for
+-- primitive arrays, a Lua table for reference arrays) held inline, which
+-- generated code accesses directly. Anything else which needs to read or
+-- write elements goes through the accessors on the array's climp, which
+-- are shared by every array of that class. The climp also records the
+-- ElementSize of primitive arrays, and the ElementClimp of reference
+-- arrays.
+
+local function ArrayGet(self, index)
+	if (index < 0) or (index >= self.length) then
+		error(simpleconstructor("java/lang/ArrayIndexOutOfBoundsException"))
+	end
+	return self.store[index]
+end
+
+local function ArrayPut(self, index, value)
+	if (index < 0) or (index >= self.length) then
+		error(simpleconstructor("java/lang/ArrayIndexOutOfBoundsException"))
+	end
+	self.store[index] = value
+end
+
+local function Length(self)
+	return self.length
+end
+
+-- Reference arrays are stored one-based, so that every element is in the
+-- array part of the table (Lua tables keep index 0 in the hash part).
 
-	local classname = "["..typechar
+local function ReferenceArrayGet(self, index)
+	if (index < 0) or (index >= self.length) then
+		error(simpleconstructor("java/lang/ArrayIndexOutOfBoundsException"))
+	end
+	return self.store[index+1]
+end
+
+local function ReferenceArrayPut(self, index, value)
+	if (index < 0) or (index >= self.length) then
+		error(simpleconstructor("java/lang/ArrayIndexOutOfBoundsException"))
+	end
+	self.store[index+1] = value
+end
+
+local function arrayclimp(classname, get, put)
 	local climp = ClimpLoader.Default:LoadClimp(classname)
-	local object = New(climp)
+	climp.ArrayGet = get
+	climp.ArrayPut = put
+	climp.Length = Length
+	return climp
+end
 
-	local init
-	if (length == 0) then
-		init = {}
-	else
-		init = {0}
+-- The climp and storage type for each kind of primitive array are looked
+-- up once, rather than on every allocation. FFI variable-length arrays are
+-- zero-filled when created.
+
+local primitivearrays = {}
+
+-- Likewise for reference arrays, keyed by the element climp. Their storage
+-- is presized to the array's length, so that filling it never rehashes;
+-- null elements are simply nil.
+
+local referencearrays = {}
+
+local function NewArray(kind, length)
+	local a = primitivearrays[kind]
+	if not a then
+		local k = primitivetypes[kind]
+		Utils.Assert(k, "unsupported primitive kind ", kind)
+		a = {
+			Climp = arrayclimp("["..k[1], ArrayGet, ArrayPut),
+			Type = ffi.typeof(k[2].."[?]")
+		}
+		a.Climp.ElementSize = ffi.sizeof(k[2])
+		primitivearrays[kind] = a
+	end
+
+	local hash = globalhash
+	globalhash = hash + 1
+	return {
+		Climp = a.Climp,
+		Hash = hash,
+		length = length,
+		-- Never allocate a zero-length VLA.
+		store = a.Type((length == 0) and 1 or length)
+	}
+end
+
+-- Strings. java.lang.String keeps its Java layout (a char[] value, with an
+-- offset and count into it, and a cached hashCode), but the VM builds and
+-- reads strings by going straight to those fields rather than through
+-- Java code. Each string also caches the Lua string it was made from or
+-- converted to, as LuaString; Java strings are immutable, so this never
+-- goes stale.
+
+local stringlayout = nil
+
+-- Returns the String climp and the slots of its fields.
+
+local function StringLayout()
+	if not stringlayout then
+		local c = ClimpLoader.Default:LoadClimp("java/lang/String")
+		c:Initialise()
+		local function slot(name, descriptor)
+			return Fields.InstanceFieldSlot(c, {Name = name, Descriptor = descriptor})
+		end
+		stringlayout = {
+			Climp = c,
+			Value = slot("value", "[C"),
+			Offset = slot("offset", "I"),
+			Count = slot("count", "I"),
+			Hash = slot("hashCode", "I")
+		}
 	end
-	local store = ffi.new(impl.."["..tonumber(length).."]", init)
+	return stringlayout
+end
 
-	object.ArrayPut = function(self, index, value)
-		if (index < 0) or (index >= length) then
-			return nil, simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
+-- Converts (modified) UTF-8, as used in class files, to a char[] array;
+-- pure ASCII is just widened. Class files encode supplementary characters
+-- as surrogate pairs, but four-byte sequences from standard UTF-8 are
+-- accepted too.
+
+local function utf8tochars(utf8)
+	local length = #utf8
+	local bytes = ffi.cast("const uint8_t*", utf8)
+	if not string_find(utf8, "[\128-\255]") then
+		local a = NewArray(5, length)
+		local store = a.store
+		for i = 0, length-1 do
+			store[i] = bytes[i]
 		end
-		store[index] = value
+		return a, length
 	end
 
-	object.ArrayGet = function(self, index)
-		if (index < 0) or (index >= length) then
-			return nil, simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
+	local units = {}
+	local i = 0
+	while (i < length) do
+		local b = bytes[i]
+		if (b < 0x80) then
+			i = i + 1
+		elseif (b < 0xe0) and (i+1 < length) then
+			b = (b % 0x20)*0x40 + (bytes[i+1] % 0x40)
+			i = i + 2
+		elseif (b < 0xf0) and (i+2 < length) then
+			b = (b % 0x10)*0x1000 + (bytes[i+1] % 0x40)*0x40 + (bytes[i+2] % 0x40)
+			i = i + 3
+		elseif (b < 0xf8) and (i+3 < length) then
+			b = (b % 0x08)*0x40000 + (bytes[i+1] % 0x40)*0x1000 +
+				(bytes[i+2] % 0x40)*0x40 + (bytes[i+3] % 0x40) - 0x10000
+			units[#units+1] = 0xd800 + math_floor(b / 0x400)
+			b = 0xdc00 + (b % 0x400)
+			i = i + 4
+		else
+			i = i + 1 -- truncated sequence; pass the byte through
 		end
-		return store[index]
+		units[#units+1] = b
 	end
-			
-	object.Length = function(self)
-		return length
+
+	local a = NewArray(5, #units)
+	local store = a.store
+	for k, u in ipairs(units) do
+		store[k-1] = u
 	end
+	return a, #units
+end
+
+-- A scratch buffer for converting strings back to Lua. Three bytes for
+-- every char is always enough: a surrogate pair becomes a single four-byte
+-- sequence, which is only two bytes per char.
+
+local scratch = ffi.new("uint8_t[?]", 256)
+local scratchsize = 256
 
-	object.store = store
+local function FromString(s)
+	local r = s.LuaString
+	if r then
+		return r
+	end
+
+	local layout = StringLayout()
+	local store = s[layout.Value].store
+	local offset = s[layout.Offset]
+	local count = s[layout.Count]
+	if (count*3 > scratchsize) then
+		scratchsize = count*3
+		scratch = ffi.new("uint8_t[?]", scratchsize)
+	end
 
-	return object
+	local n = 0
+	local i = offset
+	local last = offset+count-1
+	while (i <= last) do
+		local c = store[i]
+		local c2 = (i < last) and store[i+1]
+		if (c >= 0xd800) and (c < 0xdc00) and c2 and
+				(c2 >= 0xdc00) and (c2 < 0xe000) then
+			-- A surrogate pair; combine it into one code point. (Unpaired
+			-- surrogates are encoded on their own, like any other char.)
+			c = 0x10000 + (c - 0xd800)*0x400 + (c2 - 0xdc00)
+			scratch[n] = 0xf0 + math_floor(c / 0x40000)
+			scratch[n+1] = 0x80 + (math_floor(c / 0x1000) % 0x40)
+			scratch[n+2] = 0x80 + (math_floor(c / 0x40) % 0x40)
+			scratch[n+3] = 0x80 + (c % 0x40)
+			n = n + 4
+			i = i + 1
+		elseif (c < 0x80) then
+			scratch[n] = c
+			n = n + 1
+		elseif (c < 0x800) then
+			scratch[n] = 0xc0 + math_floor(c / 0x40)
+			scratch[n+1] = 0x80 + (c % 0x40)
+			n = n + 2
+		else
+			scratch[n] = 0xe0 + math_floor(c / 0x1000)
+			scratch[n+1] = 0x80 + (math_floor(c / 0x40) % 0x40)
+			scratch[n+2] = 0x80 + (c % 0x40)
+			n = n + 3
+		end
+		i = i + 1
+	end
+
+	r = ffi.string(scratch, n)
+	s.LuaString = r
+	return r
 end
 
--- Creates a read-only byte[] array with data stored in the supplied string.
+-- Handles a miss on a call site's inline cache by remembering the method
+-- which was looked up in the first free way. Generated code stops calling
+-- this once the cache is full, so megamorphic sites just use their vtable.
+
+local InlineCacheWays = 2
+
+-- All inline caches are tracked so that they can be flushed when the class
+-- hierarchy changes and compiled methods are invalidated.
+
+local inlinecaches = {}
+setmetatable(inlinecaches, {__mode = "k"})
+
+local function NewInlineCache()
+	local ic = {}
+	inlinecaches[ic] = true
+	return ic
+end
 
-local function NewStringArray(data)
-	local climp = ClimpLoader.Default:LoadClimp("[B")
-	local object = New(climp)
+local function FlushInlineCaches()
+	for ic in pairs(inlinecaches) do
+		for k in pairs(ic) do
+			ic[k] = nil
+		end
+	end
+end
 
-	object.ArrayPut = function(self, index, value)
-		Utils.Throw("attempted write to StringArray")
+local function InlineCacheFill(ic, base, climp, m)
+	for i = base, base + (InlineCacheWays-1)*2, 2 do
+		if not ic[i] then
+			ic[i] = climp
+			ic[i+1] = m
+			return
+		end
 	end
+end
 
-	object.ArrayGet = function(self, index)
-		if (index < 0) or (index >= #data) then
-			return nil, simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
+-- Resolves a symbolic reference the first time the code using it runs.
+-- The descriptor gives the kind of reference, the climp whose constant pool
+-- it's in, and its index there; the result is cached in the descriptor.
+-- References which create instances or touch static members also
+-- initialise the class concerned.
+--
+--   class, new: the climp, as Climp
+--   static: the Statics table holding a static field, and its Slot
+--   field: the Slot of an instance field
+--   method, staticmethod: the climp, and the method's virtual Slot
+
+local function Resolve(d)
+	local climp = d.Climp
+	local analysis = climp.Analysis
+	local climploader = climp:ClimpLoader()
+	local kind = d.Kind
+
+	local r
+	if (kind == "class") or (kind == "new") then
+		local c = climploader:LoadClimp(analysis.ClassConstants[d.Index])
+		if (kind == "new") then
+			c:Initialise()
+		end
+		r = {Climp = c}
+	else
+		local f = analysis.RefConstants[d.Index]
+		local c = climploader:LoadClimp(f.Class)
+		if (kind == "static") then
+			local dc, slot = Fields.StaticFieldSlot(c, f)
+			dc:Initialise()
+			r = {Statics = dc.Statics, Slot = slot}
+		elseif (kind == "field") then
+			r = {Slot = Fields.InstanceFieldSlot(c, f)}
+		else
+			if (kind == "staticmethod") then
+				c:Initialise()
+			end
+			r = {Climp = c, Slot = c:VirtualMethodSlot(f.Name..f.Descriptor)}
 		end
-		return string_byte(data, index+1)
 	end
-			
-	object.Length = function(self)
-		return #data
+
+	d.Resolved = r
+	return r
+end
+
+-- Returns the element climp of a reference array climp, or nil for
+-- anything else. Array climps which have been allocated already know it;
+-- others (such as cast targets) work it out from their name.
+
+local function referenceelement(climp)
+	local e = climp.ElementClimp
+	if not e then
+		local n = climp:ThisClass()
+		local _, _, en = string_find(n, "^%[L(.*);$")
+		if not en then
+			_, _, en = string_find(n, "^%[(%[.*)$")
+		end
+		if not en then
+			return nil
+		end
+		e = climp:ClimpLoader():LoadClimp(en)
+		climp.ElementClimp = e
 	end
+	return e
+end
 
-	object.store = data
+-- Returns true if a value of one class may be stored in a variable of
+-- another. Array types are covariant in their element types, which the
+-- Supertypes sets don't capture.
 
-	return object
+local function IsAssignable(from, to)
+	if from.Supertypes[to] then
+		return true
+	end
+	local te = referenceelement(to)
+	if not te then
+		return false
+	end
+	local fe = referenceelement(from)
+	if not fe then
+		return false
+	end
+	return IsAssignable(fe, te)
 end
 
 -- Returns the java.lang.Class object which represents a particular climp.
@@ -138,6 +416,7 @@ local GetClassForClimp
 GetClassForClimp = function(climp)
 	if not classobjects[climp] then
 		local c = ClimpLoader.Default:LoadClimp("java/lang/Class")
+		c:Initialise()
 		local o = New(c)
 		local n = climp:ThisClass()
 		o.forClimp = climp
@@ -166,73 +445,87 @@ return {
 	NewArray = NewArray,
 
 	NewAArray = function(climp, length)
-		local classname = "[L"..climp:ThisClass()..";"
-		local arrayclimp = ClimpLoader.Default:LoadClimp(classname)
-		local object = New(arrayclimp)
-
-		local store = {}
-
-		object.ArrayPut = function(self, index, value)
-			if (index < 0) or (index >= length) then
-				return nil, simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
+		local ac = referencearrays[climp]
+		if not ac then
+			local n = climp:ThisClass()
+			if not string_find(n, "^%[") then
+				n = "L"..n..";"
 			end
-			store[index] = value
-		end
-
-		object.ArrayGet = function(self, index)
-			if (index < 0) or (index >= length) then
-				return nil, simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
-			end
-			return store[index]
-		end
-			
-		object.Length = function(self)
-			return length
+			ac = arrayclimp("["..n, ReferenceArrayGet, ReferenceArrayPut)
+			ac.ElementClimp = climp
+			referencearrays[climp] = ac
 		end
 
-		return object
+		local hash = globalhash
+		globalhash = hash + 1
+		return {
+			Climp = ac,
+			Hash = hash,
+			length = length,
+			store = table_new(length, 0)
+		}
 	end,
 
 	InstanceOf = function(o, climp)
 		if not o then
 			return true
 		end
-		local c = o:Climp()
-		while c do
-			if (c == climp) then
-				return true
-			end
-			c = c:SuperClimp()
-		end
-		return false
+		return IsAssignable(o.Climp, climp)
 	end,
 
+	IsAssignable = IsAssignable,
+
 	GetClassForClimp = GetClassForClimp,
+	Resolve = Resolve,
+
+	InlineCacheWays = InlineCacheWays,
+	InlineCacheFill = InlineCacheFill,
+	NewInlineCache = NewInlineCache,
+	FlushInlineCaches = FlushInlineCaches,
+
+	-- Returns the (interned) Java string for a Lua string.
 
 	NewString = function(utf8)
-		if not stringobjects[utf8] then
-			local c = ClimpLoader.Default:LoadClimp("java/lang/String")
-			local o = New(c)
-			local a = NewStringArray(utf8)
-			o.Methods["<init>([BI)V"](o, a, 0)
+		local o = stringobjects[utf8]
+		if not o then
+			local layout = StringLayout()
+			local a, count = utf8tochars(utf8)
+			o = New(layout.Climp)
+			o[layout.Value] = a
+			o[layout.Offset] = 0
+			o[layout.Count] = count
+			o.LuaString = utf8
 
 			stringobjects[utf8] = o
 		end
-		return stringobjects[utf8]
+		return o
 	end,
 
-	FromString = function(s)
-		local ss = {}
-		local len = s.Methods["length()I"](s)
-		for i=0, len-1 do
-			local c = s.Methods["charAt(I)C"](s, i)
-			ss[#ss+1] = string_char(c)
-		end
-		return table_concat(ss)
-	end,
-	
+	FromString = FromString,
+	StringLayout = StringLayout,
+
 	NullPointerException = function()
 		return simpleconstructor("java/lang/NullPointerException")
 	end,
+
+	ArrayIndexOutOfBoundsException = function()
+		return simpleconstructor("java/lang/ArrayIndexOutOfBoundsException")
+	end,
+
+	ArithmeticException = function()
+		return simpleconstructor("java/lang/ArithmeticException")
+	end,
+
+	ArrayStoreException = function()
+		return simpleconstructor("java/lang/ArrayStoreException")
+	end,
+
+	IllegalArgumentException = function()
+		return simpleconstructor("java/lang/IllegalArgumentException")
+	end,
+
+	StringIndexOutOfBoundsException = function()
+		return simpleconstructor("java/lang/StringIndexOutOfBoundsException")
+	end,
 }
 
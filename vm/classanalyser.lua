@@ -166,23 +166,24 @@ local function parse_access_flags(flags)
 	return table_concat(f, " ")
 end
 
+-- Analyses a class, given either the class file itself or (if it's been
+-- cached) the output of classreader for it.
+
 local function analyseclass(classdata)
-	local impl, e = classreader(classdata)
-	if e then
-		Utils.Throw(e)
+	local impl = classdata
+	if (type(classdata) == "string") then
+		local e
+		impl, e = classreader(classdata)
+		if e then
+			Utils.Throw(e)
+		end
 	end
 
-	local Utf8Constants = {}
-	setmetatable(Utf8Constants,
-		{
-			__index = function(self, k)
-				local s = impl.constants[k]
-				assert(type(s) == "string")
-				self[k] = s
-				return s
-			end
-		}
-	)
+	-- classreader already decodes and caches constants on demand, so Utf8
+	-- constants need no further work.
+
+	local constants = impl.constants
+	local Utf8Constants = constants
 
 	local ClassConstants = {}
 	setmetatable(ClassConstants,
@@ -191,7 +192,7 @@ local function analyseclass(classdata)
 				if (k == 0) then
 					return nil
 				end
-				local ci = impl.constants[k].name_index
+				local ci = constants[k].name_index
 				local s = Utf8Constants[ci]
 				self[k] = s
 				return s
@@ -203,8 +204,8 @@ local function analyseclass(classdata)
 	setmetatable(RefConstants,
 		{
 			__index = function(self, k)
-				local c = impl.constants[k]
-				local n = impl.constants[c.name_and_type_index]
+				local c = constants[k]
+				local n = constants[c.name_and_type_index]
 				Utils.Assert(n, "index=", k)
 
 				local f = {}
@@ -260,18 +261,29 @@ local function analyseclass(classdata)
 		Fields[name] = field
 	end
 
+	local Interfaces = {}
+	do
+		local i = 0
+		while impl.interfaces[i] do
+			Interfaces[#Interfaces+1] = ClassConstants[impl.interfaces[i]]
+			i = i + 1
+		end
+	end
+
 	class = {
 		MinorVersion = impl.minor_version,
 		MajorVersion = impl.major_version,
 		AccessFlags = parse_access_flags(impl.access_flags),
 		ThisClass = ClassConstants[impl.this_class],
 		SuperClass = ClassConstants[impl.super_class],
+		Interfaces = Interfaces,
 		Utf8Constants = Utf8Constants,
 		ClassConstants = ClassConstants,
 		RefConstants = RefConstants,
 		Methods = Methods,
 		Fields = Fields,
-		Constants = impl.constants
+		Constants = constants,
+		ConstantPoolCount = impl.constant_pool_count
 	}
 
 	resolveattributes(class, impl.attributes, class)
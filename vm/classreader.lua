@@ -5,71 +5,103 @@
 -- project root for the full text.
 
 local ffi = require("ffi")
+local bit = require("bit")
 local Utils = require("Utils")
-local Cast = require("Cast")
 local dbg = Utils.Debug
-local string_byte = string.byte
 local string_sub = string.sub
-local BBtoW = Cast.BBtoW
-local BBtoSW = Cast.BBtoSW
-local WWtoI = Cast.WWtoI
-local WWtoSI = Cast.WWtoSI
-local ItoF = Cast.ItoF
-local ItoSI = Cast.ItoSI
-local IItoL = Cast.IItoL
-local IItoSL = Cast.IItoSL
-local IItoD = Cast.IItoD
+local bit_tobit = bit.tobit
+local ffi_cast = ffi.cast
+
+-- The class data is read in place through a pointer rather than a byte at a
+-- time with string.byte. Multibyte fields are big-endian; floating point
+-- constants are reassembled in this union in the host's byte order.
+
+ffi.cdef [[
+	union luje_classreader_bits {
+		uint8_t b[8];
+		float f;
+		double d;
+		int64_t l;
+	};
+]]
+
+local bits = ffi.new("union luje_classreader_bits")
+local littleendian = ffi.abi("le")
+
+-- The size of the body of each kind of constant pool entry, after its tag;
+-- Utf8 entries are variable-sized.
+
+local constant_sizes =
+{
+	[3] = 4, -- CONSTANT_Integer
+	[4] = 4, -- CONSTANT_Float
+	[5] = 8, -- CONSTANT_Long
+	[6] = 8, -- CONSTANT_Double
+	[7] = 2, -- CONSTANT_Class
+	[8] = 2, -- CONSTANT_String
+	[9] = 4, -- CONSTANT_Fieldref
+	[10] = 4, -- CONSTANT_Methodref
+	[11] = 4, -- CONSTANT_InterfaceMethodref
+	[12] = 4, -- CONSTANT_NameAndType
+}
 
 local function loadclass(classdata)
 	local classobj = {}
-	local pos = 1
+	local data = ffi_cast("const uint8_t*", classdata)
+	local size = #classdata
+	local pos = 0
 
-	local function u1()
-		local r = string_byte(classdata, pos)
-		pos = pos + 1
-		return r
+	local function check(count)
+		if (pos + count > size) then
+			Utils.Throw("truncated class file")
+		end
 	end
 
-	local function u2()
-		local hi = u1()
-		local lo = u1()
-		return BBtoW(hi, lo)
+	local function u1at(p)
+		return data[p]
 	end
 
-	local function u4()
-		local hi = u2()
-		local lo = u2()
-		return WWtoI(hi, lo)
+	local function u2at(p)
+		return data[p]*0x100 + data[p+1]
 	end
 
-	local function s4()
-		local i = u4()
-		return ItoSI(i)
+	local function u4at(p)
+		return data[p]*0x1000000 + data[p+1]*0x10000 + data[p+2]*0x100 + data[p+3]
 	end
 
-	local function f4()
-		local i = u4()
-		return ItoF(i)
+	-- Copies a big-endian value of the given size into the union.
+
+	local function bitsat(p, count)
+		for i = 0, count-1 do
+			if littleendian then
+				bits.b[count-1-i] = data[p+i]
+			else
+				bits.b[i] = data[p+i]
+			end
+		end
+		return bits
 	end
 
-	local function s8()
-		local hi = u4()
-		local lo = u4()
-		return IItoSL(hi, lo)
+	local function u2()
+		local r = u2at(pos)
+		pos = pos + 2
+		return r
 	end
 
-	local function f8()
-		local hi = u4()
-		local lo = u4()
-		return IItoD(hi, lo)
+	local function u4()
+		local r = u4at(pos)
+		pos = pos + 4
+		return r
 	end
 
 	local function utf8(count)
-		local s = string_sub(classdata, pos, pos+count-1)
+		check(count)
+		local s = string_sub(classdata, pos+1, pos+count)
 		pos = pos + count
 		return s
 	end
 
+	check(10)
 	if (u4() ~= 0xcafebabe) then
 		return Utils.Throw("not a class file")
 	end
@@ -77,88 +109,117 @@ local function loadclass(classdata)
 	classobj.minor_version = u2()
 	classobj.major_version = u2()
 
-	-- Load constant pool
+	-- Scan the constant pool. This only records the tag and position of
+	-- each entry in flat arrays; an entry is decoded the first time it's
+	-- looked up, so that constants which are never used cost nothing.
+
+	local constant_pool_count = u2()
+	local tags = {}
+	local offsets = {}
+	do
+		local i = 1
+		while (i < constant_pool_count) do
+			check(3)
+			local tag = u1at(pos)
+			pos = pos + 1
+
+			local len
+			if (tag == 1) then -- CONSTANT_Utf8
+				len = 2 + u2at(pos)
+			else
+				len = constant_sizes[tag]
+				if not len then
+					Utils.Throw("invalid constant pool tag "..tag)
+				end
+			end
+			check(len)
+
+			tags[i] = tag
+			offsets[i] = pos
+			pos = pos + len
+			if (tag == 5) or (tag == 6) then -- longs and doubles take two
+				i = i + 2
+			else
+				i = i + 1
+			end
+		end
+	end
 
-	local ref_reader = function()
+	local function ref(p)
 		return {
-			class_index = u2(),
-			name_and_type_index = u2()
-		}, 1
+			class_index = u2at(p),
+			name_and_type_index = u2at(p+2)
+		}
 	end
 
-	local constant_reader =
+	local constant_decoder =
 	{
-		[1] = function() -- CONSTANT_Utf8
-			local len = u2()
-			return utf8(len), 1
+		[1] = function(p) -- CONSTANT_Utf8
+			return string_sub(classdata, p+3, p+2+u2at(p))
 		end,
 
-		[3] = function() -- CONSTANT_Integer
-			return bit.tobit(s4()), 1
+		[3] = function(p) -- CONSTANT_Integer
+			return bit_tobit(u4at(p))
 		end,
 
-		[4] = function() -- CONSTANT_Float
-			return f4(), 1
+		[4] = function(p) -- CONSTANT_Float
+			return bitsat(p, 4).f
 		end,
 
-		[5] = function() -- CONSTANT_Long
-			return ffi.cast("int64_t", s8()), 2
+		[5] = function(p) -- CONSTANT_Long
+			return bitsat(p, 8).l
 		end,
 
-		[6] = function() -- CONSTANT_Double
-			return f8(), 2
+		[6] = function(p) -- CONSTANT_Double
+			return bitsat(p, 8).d
 		end,
 
-		[7] = function() -- CONSTANT_Class
+		[7] = function(p) -- CONSTANT_Class
 			return {
 				tag = "CONSTANT_class",
-				name_index = u2()
-			}, 1
+				name_index = u2at(p)
+			}
 		end,
 
-		[8] = function() -- CONSTANT_String
+		[8] = function(p) -- CONSTANT_String
 			return {
 				tag = "CONSTANT_String",
-				string_index = u2()
-			}, 1
+				string_index = u2at(p)
+			}
 		end,
 
-		[9] = ref_reader, -- CONSTANT_Fieldref
-		[10] = ref_reader, -- CONSTANT_Methodref
-		[11] = ref_reader, -- CONSTANT_InterfaceMethodref
+		[9] = ref, -- CONSTANT_Fieldref
+		[10] = ref, -- CONSTANT_Methodref
+		[11] = ref, -- CONSTANT_InterfaceMethodref
 
-		[12] = function() -- CONSTANT_NameAndType
+		[12] = function(p) -- CONSTANT_NameAndType
 			return {
 				tag = "CONSTANT_NameAndType",
-				name_index = u2(),
-				descriptor_index = u2()
-			}, 1
+				name_index = u2at(p),
+				descriptor_index = u2at(p+2)
+			}
 		end
 	}
 
-	local constant_pool_count = u2()
+	classobj.constant_pool_count = constant_pool_count
 	classobj.constants = {}
-	do
-		local i = 1
-		while (i < constant_pool_count) do
-			local tag = u1()
-			local reader = constant_reader[tag]
-			if not reader then
-				Utils.Throw("invalid constant pool tag "..tag)
-			end
-
-			local c, d = reader()
-			if not c then
-				Utils.Throw("unimplemented constant pool tag "..tag)
+	setmetatable(classobj.constants,
+		{
+			__index = function(self, k)
+				local tag = tags[k]
+				if not tag then
+					return nil
+				end
+				local c = constant_decoder[tag](offsets[k])
+				self[k] = c
+				return c
 			end
-
-			classobj.constants[i] = c
-			i = i + d
-		end
-	end
+		}
+	)
 
 	-- More miscellaneous fields
 
+	check(8)
 	classobj.access_flags = u2()
 	classobj.this_class = u2()
 	classobj.super_class = u2()
@@ -166,6 +227,7 @@ local function loadclass(classdata)
 	-- Load interfaces list
 
 	local interfaces_count = u2()
+	check(interfaces_count*2 + 2)
 	classobj.interfaces = {}
 	for i = 0, interfaces_count-1 do
 		classobj.interfaces[i] = u2()
@@ -193,6 +255,7 @@ local function loadclass(classdata)
 			a.code = utf8(code_length)
 
 			local exception_table_length = u2()
+			check(exception_table_length*8)
 			a.exception_table = {}
 			for i = 1, exception_table_length do
 				a.exception_table[i] = {
@@ -281,16 +344,18 @@ local function loadclass(classdata)
 	end
 
 	local function attribute()
+		check(6)
 		local attribute_name_index = u2()
 		local attribute_name = classobj.constants[attribute_name_index]
 		local reader = attribute_reader[attribute_name]
 
 		if not reader then
-			Utils.Throw("unknown attribute with name "..attribute_name)
+			Utils.Throw("unknown attribute with name "..tostring(attribute_name))
 		end
 
 		local len = u4()
 		local oldpos = pos
+		check(len)
 		local a = reader()
 		if (a == nil) then
 			Utils.Throw("unimplemented attribute "..attribute_name)
@@ -302,6 +367,7 @@ local function loadclass(classdata)
 	end
 
 	attributes = function()
+		check(2)
 		local attributes_count = u2()
 		local a = {}
 		for i = 1, attributes_count do
@@ -312,9 +378,11 @@ local function loadclass(classdata)
 
 	-- Fields.
 
+	check(2)
 	local fields_count = u2()
 	classobj.fields = {}
 	for i = 1, fields_count do
+		check(6)
 		classobj.fields[i] = {
 			access_flags = u2(),
 			name_index = u2(),
@@ -325,9 +393,11 @@ local function loadclass(classdata)
 
 	-- Methods.
 
+	check(2)
 	local methods_count = u2()
 	classobj.methods = {}
 	for i = 1, methods_count do
+		check(6)
 		classobj.methods[i] = {
 			access_flags = u2(),
 			name_index = u2(),
@@ -13,28 +13,50 @@ local Utils = require("Utils")
 local ClimpLoader = require("ClimpLoader")
 local Runtime = require("Runtime")
 local Options = require("Options")
+local CodeCache = require("CodeCache")
+local ClassPath = require("ClassPath")
 local string_gsub = string.gsub
+local string_find = string.find
 require("natives")
 
 -- Parse command line arguments.
 
 local classtoload = nil
+local aotdirectory = nil
 do
 	local function do_help(arg)
 		io.stderr:write("luje © 2013 David Given\n"..
 		                "Usage: luje [<options>] <classname>\n"..
-		                "The classpath is currently hard coded to be ./bin.\n"..
 						"\n"..
 						"Options:\n"..
 						"  -h  --help             produce this message\n"..
+						"      --classpath <path> colon-separated directories and jars to load classes\n"..
+						"                         from, after the bin directory\n"..
 						"  -n  --no-null-checks   don't check for null pointers\n"..
 						"  -d  --dump             dump out generated Lua source\n"..
 						"  -t  --trace            trace compilations and class loads\n"..
+						"      --no-inline        don't inline small methods\n"..
+						"      --inline-size <n>  largest method to inline, in bytes (default 35)\n"..
+						"      --no-expressions   copy every value through a stack variable\n"..
+						"      --no-tiering       translate every method on its first call\n"..
+						"      --hot-threshold <n> calls and loop iterations before translating (default 1000)\n"..
+						"      --cache <dir>      cache parsed classes and translated methods in <dir>\n"..
+						"      --aot <dir>        translate everything reachable from <classname> into\n"..
+						"                         <dir>/luje.bundle instead of running it\n"..
+						"      --bundle <file>    use the classes and methods in a bundle\n"..
 						"\n"..
 						"Here be dragons!\n")
 		os.exit(0)
 	end
 
+	local function do_classpath(arg)
+		if not arg then
+			Utils.UserError("--classpath needs a list of directories and jars (try --help)")
+		end
+		ClassPath.Set(arg)
+		return 1
+	end
+
 	local function do_no_null_checks(arg)
 		Options.CheckNullPointers = false
 		return 0
@@ -50,11 +72,70 @@ do
 		return 0
 	end
 
+	local function do_no_inline(arg)
+		Options.Inline = false
+		return 0
+	end
+
+	local function do_inline_size(arg)
+		Options.InlineSize = tonumber(arg)
+		if not Options.InlineSize then
+			Utils.UserError("--inline-size needs a number (try --help)")
+		end
+		return 1
+	end
+
+	local function do_no_expressions(arg)
+		Options.Expressions = false
+		return 0
+	end
+
+	local function do_no_tiering(arg)
+		Options.Tiered = false
+		return 0
+	end
+
+	local function do_hot_threshold(arg)
+		Options.HotThreshold = tonumber(arg)
+		if not Options.HotThreshold then
+			Utils.UserError("--hot-threshold needs a number (try --help)")
+		end
+		return 1
+	end
+
+	local function do_cache(arg)
+		if not arg then
+			Utils.UserError("--cache needs a directory (try --help)")
+		end
+		Options.CacheDirectory = arg
+		return 1
+	end
+
+	local function do_aot(arg)
+		if not arg then
+			Utils.UserError("--aot needs a directory (try --help)")
+		end
+		aotdirectory = arg
+		Options.Tiered = false
+		return 1
+	end
+
+	local function do_bundle(arg)
+		if not arg then
+			Utils.UserError("--bundle needs a filename (try --help)")
+		end
+		CodeCache.LoadBundle(arg)
+		return 1
+	end
+
 	Utils.ParseCommandLine({...},
 		{
 			["h"] = do_help,
 			["help"] = do_help,
 
+			["classpath"] = do_classpath,
+			["cp"] = do_classpath,
+
 			["n"] = do_no_null_checks,
 			["no-null-checks"] = do_no_null_checks,
 
@@ -64,6 +145,15 @@ do
 			["t"] = do_trace,
 			["trace"] = do_trace,
 
+			["no-inline"] = do_no_inline,
+			["inline-size"] = do_inline_size,
+			["no-expressions"] = do_no_expressions,
+			["no-tiering"] = do_no_tiering,
+			["hot-threshold"] = do_hot_threshold,
+			["cache"] = do_cache,
+			["aot"] = do_aot,
+			["bundle"] = do_bundle,
+
 			[" unrecognised"] = function(arg)
 				Utils.UserError("option not recognised (try --help)")
 			end,
@@ -84,17 +174,74 @@ if not classtoload then
 end
 classtoload = string_gsub(classtoload, "%.", "/")
 
+-- In ahead-of-time mode, translate every method of every class reachable
+-- from the destination class, and write them all out as a bundle. Classes
+-- are reachable if they're named in the constant pool of a reachable
+-- class; they're loaded but not initialised, so no Java code runs. Loading
+-- a class may load more, so keep going until no new classes turn up.
+
+if aotdirectory then
+	CodeCache.StartBundle()
+	local loader = ClimpLoader.Default
+	loader:LoadClimp(classtoload)
+
+	local done = {}
+	local progress = true
+	while progress do
+		progress = false
+		for _, name in ipairs(loader:LoadedClasses()) do
+			if not done[name] then
+				done[name] = true
+				progress = true
+
+				local c = loader:LoadClimp(name)
+				local analysis = c.Analysis
+				for k = 1, (analysis.ConstantPoolCount or 1)-1 do
+					local constant = analysis.Constants[k]
+					if (type(constant) == "table") and
+							(constant.tag == "CONSTANT_class") then
+						loader:LoadClimp(analysis.ClassConstants[k])
+					end
+				end
+
+				for n, mimpl in pairs(analysis.Methods) do
+					if not string_find(mimpl.AccessFlags, " native ") and
+							not string_find(mimpl.AccessFlags, " abstract ") then
+						c:FindMethod(n)
+					end
+				end
+			end
+		end
+	end
+
+	local hashes = {}
+	for _, name in ipairs(loader:LoadedClasses()) do
+		local hash = loader:ClassHash(name)
+		if (hash ~= "") then
+			hashes[name] = hash
+		end
+	end
+	CodeCache.WriteBundle(aotdirectory.."/luje.bundle", hashes)
+	os.exit(0)
+end
+
 -- Load the destination class and run the main method on it.
 
 local t, e = ClimpLoader.Default:LoadClimp(classtoload)
+t:Initialise()
 local m = t.Methods["main([Ljava/lang/String;)V"]
 if not m then
 	Utils.UserError("this isn't a main class (try --help)")
 end
 
-local r, e = m(t, nil)
-if e then
-	local es = e.Methods["toString()Ljava/lang/String;"](e)
+-- Java exceptions propagate as Lua errors; anything else is a VM failure.
+
+local ok, e = pcall(m, t, nil)
+if not ok then
+	if (type(e) ~= "table") then
+		error(e, 0)
+	end
+	local es = e.Climp:FindMethod("toString()Ljava/lang/String;")(e)
 	Utils.Debug("uncaught exception: ", Runtime.FromString(es))
 end
 
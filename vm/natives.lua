@@ -11,10 +11,13 @@ local ClimpLoader = require("ClimpLoader")
 local ffi = require("ffi")
 local string_find = string.find
 local string_byte = string.byte
+local bit = require("bit")
+local bit_tobit = bit.tobit
+local bit_bxor = bit.bxor
 
 Runtime.RegisterNativeMethod("java/lang/Object", "hashCode()I",
 	function(self)
-		return self:Hash()
+		return self.Hash
 	end
 )
 
@@ -29,7 +32,7 @@ Runtime.RegisterNativeMethod("java/lang/Void", "getVoidClass()Ljava/lang/Class;"
 
 Runtime.RegisterNativeMethod("java/lang/Object", "getClass()Ljava/lang/Class;",
 	function(self)
-		return Runtime.GetClassForClimp(self:Climp())
+		return Runtime.GetClassForClimp(self.Climp)
 	end
 )
 
@@ -60,6 +63,9 @@ Runtime.RegisterNativeMethod("java/lang/Class", "getName()Ljava/lang/String;",
 
 --- Maths -------------------------------------------------------------------
 
+-- Natives returning longs must return int64_t cdata, as the generated code
+-- relies on longs never being plain Lua numbers.
+
 Runtime.RegisterNativeMethod("java/lang/Math", "sqrt(D)D", math.sqrt)
 Runtime.RegisterNativeMethod("java/lang/Math", "sin(D)D", math.sin)
 Runtime.RegisterNativeMethod("java/lang/Math", "cos(D)D", math.cos)
@@ -67,11 +73,19 @@ Runtime.RegisterNativeMethod("java/lang/Math", "tan(D)D", math.tan)
 Runtime.RegisterNativeMethod("java/lang/Math", "log(D)D", math.log)
 
 Runtime.RegisterNativeMethod("java/lang/Math", "max(II)I", math.max)
-Runtime.RegisterNativeMethod("java/lang/Math", "max(JJ)J", math.max)
+Runtime.RegisterNativeMethod("java/lang/Math", "max(JJ)J",
+	function(a, b)
+		if (a > b) then return a else return b end
+	end
+)
 Runtime.RegisterNativeMethod("java/lang/Math", "max(FF)F", math.max)
 Runtime.RegisterNativeMethod("java/lang/Math", "max(DD)D", math.max)
 Runtime.RegisterNativeMethod("java/lang/Math", "min(II)I", math.min)
-Runtime.RegisterNativeMethod("java/lang/Math", "min(JJ)J", math.min)
+Runtime.RegisterNativeMethod("java/lang/Math", "min(JJ)J",
+	function(a, b)
+		if (a < b) then return a else return b end
+	end
+)
 Runtime.RegisterNativeMethod("java/lang/Math", "min(FF)F", math.min)
 Runtime.RegisterNativeMethod("java/lang/Math", "min(DD)D", math.min)
 
@@ -104,17 +118,417 @@ Runtime.RegisterNativeMethod("org/apache/harmony/luni/util/NumberConverter", "co
 
 --- Arrays ------------------------------------------------------------------
 
+ffi.cdef([[
+	extern void* memmove(void* dest, const void* src, size_t n);
+]])
+
+-- All the checks are done before anything is copied, except for the type
+-- of each element when copying between reference arrays of different
+-- types; as in Java, the elements before a bad one still get copied.
+
 Runtime.RegisterNativeMethod("java/lang/System", "arraycopyImpl(Ljava/lang/Object;ILjava/lang/Object;II)V",
 	function(src, srcpos, dest, destpos, length)
-		local get = src.ArrayGet
-		local put = dest.ArrayPut
-		for i=0, length-1 do
-			local j = get(src, srcpos+i)
-			put(dest, destpos+i, j)
+		if (src == nil) or (dest == nil) then
+			error(Runtime.NullPointerException())
+		end
+
+		local srcclimp = src.Climp
+		local destclimp = dest.Climp
+		if not srcclimp.ArrayGet or not destclimp.ArrayGet then
+			error(Runtime.ArrayStoreException())
+		end
+
+		local size = srcclimp.ElementSize
+		if (size or destclimp.ElementSize) and (srcclimp ~= destclimp) then
+			error(Runtime.ArrayStoreException())
+		end
+
+		if (srcpos < 0) or (destpos < 0) or (length < 0) or
+				(srcpos + length > src.length) or
+				(destpos + length > dest.length) then
+			error(Runtime.ArrayIndexOutOfBoundsException())
+		end
+		if (length == 0) then
+			return
+		end
+
+		if size then
+			-- memmove copes with the ranges overlapping.
+			ffi.C.memmove(dest.store + destpos, src.store + srcpos, length*size)
+			return
+		end
+
+		-- Reference arrays are one-based (see NewAArray in Runtime).
+		local s = src.store
+		local d = dest.store
+		local elementclimp = destclimp.ElementClimp
+		local checked = (srcclimp ~= destclimp) and
+			not Runtime.IsAssignable(srcclimp.ElementClimp, elementclimp)
+		if checked then
+			for i = 1, length do
+				local o = s[srcpos+i]
+				if (o ~= nil) and not Runtime.IsAssignable(o.Climp, elementclimp) then
+					error(Runtime.ArrayStoreException())
+				end
+				d[destpos+i] = o
+			end
+		elseif (s == d) and (srcpos < destpos) then
+			for i = length, 1, -1 do
+				d[destpos+i] = s[srcpos+i]
+			end
+		else
+			for i = 1, length do
+				d[destpos+i] = s[srcpos+i]
+			end
 		end
 	end
 )
 
+--- Arrays intrinsics ---------------------------------------------------------
+
+-- These replace the Java implementations of the java.util.Arrays methods
+-- on primitive arrays (see compile_any_method in Climp), working directly
+-- on the FFI storage instead of an element at a time.
+
+ffi.cdef([[
+	extern int memcmp(const void* s1, const void* s2, size_t n);
+]])
+
+-- Array type character, storage type, and element size.
+
+local arraykinds =
+{
+	{"Z", "uint8_t", 1},
+	{"B", "int8_t", 1},
+	{"C", "uint16_t", 2},
+	{"S", "int16_t", 2},
+	{"I", "int32_t", 4},
+	{"J", "int64_t", 8},
+	{"F", "float", 4},
+	{"D", "double", 8}
+}
+
+local function fillrange(store, size, start, finish, value)
+	if (value == 0) and ((type(value) ~= "number") or (1/value > 0)) then
+		-- Also covers longs, as 0LL == 0; but not -0.0.
+		ffi.fill(store + start, (finish-start)*size, 0)
+	elseif (size == 1) then
+		ffi.fill(store + start, finish-start, value)
+	else
+		for i = start, finish-1 do
+			store[i] = value
+		end
+	end
+end
+
+for _, k in ipairs(arraykinds) do
+	local t, size = k[1], k[3]
+
+	Runtime.RegisterNativeMethod("java/util/Arrays", "fill([".. t..t..")V",
+		function(array, value)
+			if (array == nil) then
+				error(Runtime.NullPointerException())
+			end
+			fillrange(array.store, size, 0, array.length, value)
+		end
+	)
+
+	Runtime.RegisterNativeMethod("java/util/Arrays", "fill(["..t.."II"..t..")V",
+		function(array, start, finish, value)
+			if (array == nil) then
+				error(Runtime.NullPointerException())
+			end
+			if (start > finish) then
+				error(Runtime.IllegalArgumentException())
+			end
+			if (start < 0) or (finish > array.length) then
+				error(Runtime.ArrayIndexOutOfBoundsException())
+			end
+			fillrange(array.store, size, start, finish, value)
+		end
+	)
+end
+
+-- Arrays with identical contents are equal; so are float and double arrays
+-- whose contents differ only in the representation of NaNs. Zeroes of
+-- different signs are not equal, as floatToIntBits distinguishes them.
+
+local function equalfloats(s1, s2, length)
+	for i = 0, length-1 do
+		local a, b = s1[i], s2[i]
+		if (a ~= b) then
+			if (a == a) or (b == b) then
+				return false
+			end
+		elseif (a == 0) and (1/a ~= 1/b) then
+			return false
+		end
+	end
+	return true
+end
+
+for _, k in ipairs(arraykinds) do
+	local t, size = k[1], k[3]
+	local floating = (t == "F") or (t == "D")
+
+	Runtime.RegisterNativeMethod("java/util/Arrays", "equals(["..t.."["..t..")Z",
+		function(array1, array2)
+			if (array1 == array2) then
+				return 1
+			end
+			if (array1 == nil) or (array2 == nil) or
+					(array1.length ~= array2.length) then
+				return 0
+			end
+			local length = array1.length
+			if (ffi.C.memcmp(array1.store, array2.store, length*size) == 0) then
+				return 1
+			end
+			if floating and equalfloats(array1.store, array2.store, length) then
+				return 1
+			end
+			return 0
+		end
+	)
+end
+
+-- Hashing is unrolled four elements at a time: 31^4*h plus the rest is
+-- still exact in a double, so a single tobit gives the same result as
+-- four 32-bit multiply-adds. Each hasher takes the array's storage as a
+-- pointer to the values to hash, which for longs and doubles are the
+-- xored halves.
+
+local function hashvalues(values, length, h)
+	local i = 0
+	while (i+3 < length) do
+		h = bit_tobit(923521*h + 29791*values(i) + 961*values(i+1) +
+			31*values(i+2) + values(i+3))
+		i = i + 4
+	end
+	while (i < length) do
+		h = bit_tobit(31*h + values(i))
+		i = i + 1
+	end
+	return h
+end
+
+local int32p = ffi.typeof("const int32_t*")
+
+local hashers =
+{
+	Z = function(store)
+		return function(i)
+			return (store[i] ~= 0) and 1231 or 1237
+		end
+	end,
+
+	F = function(store)
+		local words = ffi.cast(int32p, store)
+		return function(i)
+			local f = store[i]
+			if (f ~= f) then
+				return 0x7fc00000 -- canonical NaN
+			end
+			return words[i]
+		end
+	end,
+
+	D = function(store)
+		local words = ffi.cast(int32p, store)
+		return function(i)
+			local d = store[i]
+			if (d ~= d) then
+				return 0x7ff80000 -- canonical NaN
+			end
+			return bit_bxor(words[i*2], words[i*2+1])
+		end
+	end,
+
+	J = function(store)
+		local words = ffi.cast(int32p, store)
+		return function(i)
+			return bit_bxor(words[i*2], words[i*2+1])
+		end
+	end,
+}
+
+for _, k in ipairs(arraykinds) do
+	local t = k[1]
+	local hasher = hashers[t]
+
+	Runtime.RegisterNativeMethod("java/util/Arrays", "hashCode(["..t..")I",
+		function(array)
+			if (array == nil) then
+				return 0
+			end
+			local store = array.store
+			local values
+			if hasher then
+				values = hasher(store)
+			else
+				values = function(i)
+					return store[i]
+				end
+			end
+			return hashvalues(values, array.length, 1)
+		end
+	)
+end
+
+--- String intrinsics ---------------------------------------------------------
+
+-- These work directly on a string's char[] (see StringLayout in Runtime).
+-- length isn't needed, as it's straight-line code which the translator
+-- inlines to a field access.
+
+local layout = nil
+local value, offset, count, hash
+
+local function stringlayout()
+	layout = Runtime.StringLayout()
+	value, offset, count, hash = layout.Value, layout.Offset, layout.Count, layout.Hash
+end
+
+local function newsubstring(s, start, length)
+	local o = Runtime.New(layout.Climp)
+	o[value] = s[value]
+	o[offset] = s[offset] + start
+	o[count] = length
+	return o
+end
+
+Runtime.RegisterNativeMethod("java/lang/String", "equals(Ljava/lang/Object;)Z",
+	function(self, object)
+		if not layout then
+			stringlayout()
+		end
+		if (object == self) then
+			return 1
+		end
+		-- String is final, so this is the instanceof check.
+		if (object == nil) or (object.Climp ~= self.Climp) then
+			return 0
+		end
+
+		local n = self[count]
+		if (n ~= object[count]) then
+			return 0
+		end
+		local h1, h2 = self[hash], object[hash]
+		if (h1 ~= h2) and (h1 ~= 0) and (h2 ~= 0) then
+			return 0
+		end
+		if (ffi.C.memcmp(self[value].store + self[offset],
+				object[value].store + object[offset], n*2) == 0) then
+			return 1
+		end
+		return 0
+	end
+)
+
+Runtime.RegisterNativeMethod("java/lang/String", "hashCode()I",
+	function(self)
+		if not layout then
+			stringlayout()
+		end
+		local h = self[hash]
+		if (h == 0) then
+			local store = self[value].store
+			local base = self[offset]
+			h = hashvalues(
+				function(i)
+					return store[base+i]
+				end,
+				self[count], 0)
+			self[hash] = h
+		end
+		return h
+	end
+)
+
+Runtime.RegisterNativeMethod("java/lang/String", "charAt(I)C",
+	function(self, index)
+		if not layout then
+			stringlayout()
+		end
+		if (index < 0) or (index >= self[count]) then
+			error(Runtime.StringIndexOutOfBoundsException())
+		end
+		return self[value].store[self[offset] + index]
+	end
+)
+
+-- Finds a char, or a supplementary code point as a surrogate pair.
+
+local function indexof(self, c, start)
+	if not layout then
+		stringlayout()
+	end
+	local n = self[count]
+	if (start < 0) then
+		start = 0
+	end
+	local store = self[value].store
+	local base = self[offset]
+
+	if (c >= 0) and (c <= 0xffff) then
+		for i = base+start, base+n-1 do
+			if (store[i] == c) then
+				return i - base
+			end
+		end
+	elseif (c > 0xffff) and (c <= 0x10ffff) then
+		local high = 0xd800 + math.floor((c - 0x10000) / 0x400)
+		local low = 0xdc00 + ((c - 0x10000) % 0x400)
+		for i = base+start, base+n-2 do
+			if (store[i] == high) and (store[i+1] == low) then
+				return i - base
+			end
+		end
+	end
+	return -1
+end
+
+Runtime.RegisterNativeMethod("java/lang/String", "indexOf(I)I",
+	function(self, c)
+		return indexof(self, c, 0)
+	end
+)
+
+Runtime.RegisterNativeMethod("java/lang/String", "indexOf(II)I", indexof)
+
+Runtime.RegisterNativeMethod("java/lang/String", "substring(I)Ljava/lang/String;",
+	function(self, start)
+		if not layout then
+			stringlayout()
+		end
+		if (start == 0) then
+			return self
+		end
+		local n = self[count]
+		if (start < 0) or (start > n) then
+			error(Runtime.StringIndexOutOfBoundsException())
+		end
+		return newsubstring(self, start, n - start)
+	end
+)
+
+Runtime.RegisterNativeMethod("java/lang/String", "substring(II)Ljava/lang/String;",
+	function(self, start, finish)
+		if not layout then
+			stringlayout()
+		end
+		local n = self[count]
+		if (start == 0) and (finish == n) then
+			return self
+		end
+		if (start < 0) or (start > finish) or (finish > n) then
+			error(Runtime.StringIndexOutOfBoundsException())
+		end
+		return newsubstring(self, start, finish - start)
+	end
+)
+
 --- Exceptions --------------------------------------------------------------
 
 Runtime.RegisterNativeMethod("java/lang/Throwable", "fillInStackTrace()Ljava/lang/Throwable;",
@@ -132,11 +546,11 @@ Runtime.RegisterNativeMethod("java/lang/System", "log(Ljava/lang/String;)V",
 )
 
 Runtime.RegisterNativeMethod("java/io/FileDescriptor", "getStdInDescriptor()J",
-	function() return 0 end)
+	function() return 0LL end)
 Runtime.RegisterNativeMethod("java/io/FileDescriptor", "getStdOutDescriptor()J",
-	function() return 1 end)
+	function() return 1LL end)
 Runtime.RegisterNativeMethod("java/io/FileDescriptor", "getStdErrDescriptor()J",
-	function() return 2 end)
+	function() return 2LL end)
 Runtime.RegisterNativeMethod("java/io/FileDescriptor", "oneTimeInitialization()V",
 	function() end)
 
@@ -156,7 +570,7 @@ ffi.cdef([[
 Runtime.RegisterNativeMethod("org/apache/harmony/luni/platform/OSFileSystem", "writeImpl(J[BII)J",
 	function(self, fd, data, offset, length)
 		local store = ffi.cast('int8_t*', data.store)
-		return ffi.C.write(fd, store+offset, length)
+		return ffi.cast("int64_t", ffi.C.write(fd, store+offset, length))
 	end
 )
 